@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Black Rook Software
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.sync;
+
+import java.util.concurrent.CancellationException;
+
+import com.blackrook.commons.hash.Hash;
+import com.blackrook.commons.list.List;
+
+/**
+ * A group of {@link Task}s and child scopes that are cancelled together.
+ * <p>
+ * Cancelling a scope cancels every task attached to it and every child scope, all the way down the
+ * hierarchy. Tasks and child scopes added to a scope that is already cancelled are cancelled immediately.
+ * Tasks detach themselves from their scope once they finish, and child scopes detach themselves
+ * from their parent via {@link #close()}, so long-lived scopes do not hold on to finished work.
+ * <p>
+ * Checking for cancellation, via {@link #isCancelled()} or {@link #checkCancelled()}, is a single
+ * volatile read, and can be polled often.
+ * @author Matthew Tropiano
+ * @since 2.7.0
+ */
+public class CancellationScope
+{
+	/** Parent scope. Can be null. */
+	private CancellationScope parent;
+	/** Cancelled flag. */
+	private volatile boolean cancelled;
+	/** If true, the cancel interrupts running tasks. */
+	private boolean interrupt;
+
+	/** Child scopes. */
+	private Hash<CancellationScope> children;
+	/** Attached tasks. */
+	private Hash<Task> tasks;
+	/** Listener that detaches finished tasks. */
+	private TaskListener detacher;
+
+	/**
+	 * Creates a new root scope.
+	 */
+	public CancellationScope()
+	{
+		this(null);
+	}
+
+	/**
+	 * Creates a new scope.
+	 * @param parent the parent scope, or null for a root scope.
+	 */
+	private CancellationScope(CancellationScope parent)
+	{
+		this.parent = parent;
+		this.cancelled = false;
+		this.interrupt = false;
+		this.children = new Hash<CancellationScope>(2);
+		this.tasks = new Hash<Task>(8);
+		this.detacher = new TaskListener()
+		{
+			@Override
+			public void taskFinished(Task task)
+			{
+				synchronized (CancellationScope.this)
+				{
+					tasks.remove(task);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Returns this scope's parent, or null if this is a root scope.
+	 */
+	public CancellationScope getParent()
+	{
+		return parent;
+	}
+
+	/**
+	 * Creates a new child scope of this scope.
+	 * If this scope was already cancelled, the child is created cancelled.
+	 * @return the new child scope.
+	 */
+	public CancellationScope newChild()
+	{
+		CancellationScope out = new CancellationScope(this);
+		boolean cancelChild;
+		boolean interruptChild;
+		synchronized (this)
+		{
+			if (!(cancelChild = cancelled))
+				children.put(out);
+			interruptChild = interrupt;
+		}
+		if (cancelChild)
+			out.cancel(interruptChild);
+		return out;
+	}
+
+	/**
+	 * Attaches a task to this scope, so that it gets cancelled when this scope does.
+	 * If this scope was already cancelled, the task is cancelled immediately.
+	 * @param <T> the task type.
+	 * @param task the task to attach.
+	 * @return the task attached.
+	 */
+	public <T extends Task> T attach(T task)
+	{
+		boolean cancelTask;
+		boolean interruptTask;
+		synchronized (this)
+		{
+			if (!(cancelTask = cancelled))
+				tasks.put(task);
+			interruptTask = interrupt;
+		}
+
+		if (cancelTask)
+			task.cancel(interruptTask);
+		else
+			task.addListener(detacher);
+		return task;
+	}
+
+	/**
+	 * Detaches this scope from its parent, so that it no longer gets cancelled
+	 * by the parent and can be reclaimed. Attached tasks are unaffected.
+	 * Does nothing if this is a root scope.
+	 */
+	public void close()
+	{
+		if (parent != null) synchronized (parent)
+		{
+			parent.children.remove(this);
+		}
+	}
+
+	/**
+	 * Cancels this scope, without interrupting running tasks.
+	 * Convenience method for <code>cancel(false)</code>.
+	 * @see #cancel(boolean)
+	 */
+	public void cancel()
+	{
+		cancel(false);
+	}
+
+	/**
+	 * Cancels this scope, every child scope, and every attached task.
+	 * Tasks that have not started yet are all cancelled before any running task is interrupted,
+	 * so that threads freed up by interrupted tasks do not pick up cancelled work.
+	 * Does nothing if this scope was already cancelled.
+	 * @param interrupt if true, threads running attached tasks are interrupted.
+	 * @see Task#cancel(boolean)
+	 */
+	public void cancel(boolean interrupt)
+	{
+		List<Task> taskList = new List<Task>();
+		markCancelled(interrupt, taskList);
+		
+		for (int i = 0; i < taskList.size(); i++)
+			taskList.get(i).cancel(false);
+		if (interrupt) for (int i = 0; i < taskList.size(); i++)
+			taskList.get(i).cancel(true);
+	}
+
+	/**
+	 * Flags this scope and its children as cancelled, and collects all of their attached tasks.
+	 */
+	private void markCancelled(boolean interrupt, List<Task> taskList)
+	{
+		CancellationScope[] childArray;
+		synchronized (this)
+		{
+			if (cancelled)
+				return;
+			this.interrupt = interrupt;
+			this.cancelled = true;
+
+			for (Task task : tasks)
+				taskList.add(task);
+
+			childArray = new CancellationScope[children.size()];
+			int i = 0;
+			for (CancellationScope child : children)
+				childArray[i++] = child;
+		}
+
+		for (CancellationScope child : childArray)
+			child.markCancelled(interrupt, taskList);
+	}
+
+	/**
+	 * Returns true if this scope was cancelled, false if not.
+	 */
+	public boolean isCancelled()
+	{
+		return cancelled;
+	}
+
+	/**
+	 * Throws a {@link CancellationException} if this scope was cancelled.
+	 * @throws CancellationException if this scope was cancelled.
+	 */
+	public void checkCancelled()
+	{
+		if (cancelled)
+			throw new CancellationException("Scope was cancelled.");
+	}
+
+}
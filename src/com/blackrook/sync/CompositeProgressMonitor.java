@@ -0,0 +1,237 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Black Rook Software
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.sync;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * Drives a {@link ProgressMonitor} with the weighted sum of the progress of many child monitors.
+ * <p>
+ * Children are created via {@link #createChild(float)} or {@link #createComposite(float)}, and each
+ * child can be updated from any thread. Every child update adds the change in its weighted progress
+ * to a striped accumulator, so updates from many threads do not contend with each other, and reading
+ * the combined progress costs the same no matter how many children there are.
+ * <p>
+ * The combined progress is written to the driven monitor (see {@link #getMonitor()}), moving its current
+ * value from its min value to its max value, so it can be handed to anything that reads a plain monitor,
+ * and its listeners, coalescing, and rate estimator work as usual. Only one thread writes to it at a time:
+ * a child update that comes in while another thread is writing leaves the write to that thread, which
+ * writes again before it stops, so the monitor always ends up with the latest progress.
+ * Listeners bound to the monitor are notified on every write, so if there are many children, consider
+ * using {@link ProgressMonitor#setCoalescing(long, float, java.util.concurrent.Executor)} on it.
+ * @author Matthew Tropiano
+ * @since 2.7.0
+ */
+public class CompositeProgressMonitor
+{
+	/** The driven monitor. */
+	private ProgressMonitor monitor;
+	/** Sum of weighted child progress. */
+	private DoubleAdder progressSum;
+	/** Sum of child weights. */
+	private volatile double totalWeight;
+	/** Set while a thread writes to the monitor. */
+	private AtomicBoolean writing;
+	/** Set if the progress changed since the last write started. */
+	private volatile boolean changed;
+
+	/**
+	 * Creates a new composite that drives a new monitor, with a min value of 0 and a max value of 1.
+	 */
+	public CompositeProgressMonitor()
+	{
+		this(new ProgressMonitor());
+	}
+
+	/**
+	 * Creates a new composite that drives an existing monitor.
+	 * Its current value goes from its min value to its max value as the children progress,
+	 * and should not be set by anything else.
+	 * @param monitor the monitor to drive.
+	 */
+	public CompositeProgressMonitor(ProgressMonitor monitor)
+	{
+		this.monitor = monitor;
+		this.progressSum = new DoubleAdder();
+		this.totalWeight = 0.0;
+		this.writing = new AtomicBoolean(false);
+		this.changed = false;
+	}
+
+	/**
+	 * Returns the monitor driven by this composite.
+	 */
+	public ProgressMonitor getMonitor()
+	{
+		return monitor;
+	}
+
+	/**
+	 * Creates a new child monitor with a min value of 0 and a max value of 1,
+	 * that counts towards this composite's progress.
+	 * @param weight the child's weight relative to the other children. Must be greater than 0.
+	 * @return the new child monitor.
+	 * @throws IllegalArgumentException if the weight is 0 or less.
+	 */
+	public ProgressMonitor createChild(float weight)
+	{
+		return new Child(addWeight(weight));
+	}
+
+	/**
+	 * Creates a new child composite that counts towards this composite's progress.
+	 * It drives a child monitor of this one, with a min value of 0 and a max value of 1.
+	 * @param weight the child's weight relative to the other children. Must be greater than 0.
+	 * @return the new child composite.
+	 * @throws IllegalArgumentException if the weight is 0 or less.
+	 */
+	public CompositeProgressMonitor createComposite(float weight)
+	{
+		return new CompositeProgressMonitor(createChild(weight));
+	}
+
+	/**
+	 * Adds a child weight to this composite, and returns the link for the child.
+	 */
+	private Link addWeight(float weight)
+	{
+		if (!(weight > 0f))
+			throw new IllegalArgumentException("Weight must be greater than 0.");
+		synchronized (this)
+		{
+			totalWeight += weight;
+		}
+		childChanged();
+		return new Link(this, weight);
+	}
+
+	/**
+	 * Returns the sum of the weights of all of the children of this composite.
+	 */
+	public double getTotalWeight()
+	{
+		return totalWeight;
+	}
+
+	/**
+	 * Gets the current progress as a value between 0 and 1 according to
+	 * the weighted progress of the children.
+	 */
+	public float getCurrentProgress()
+	{
+		double total = totalWeight;
+		return total > 0.0 ? clamp(progressSum.sum() / total) : 0f;
+	}
+
+	/**
+	 * Called after the weighted sum of the children changes.
+	 * Writes the new progress to the monitor, unless another thread is writing, which then writes it instead.
+	 */
+	private void childChanged()
+	{
+		changed = true;
+		while (changed && writing.compareAndSet(false, true))
+		{
+			try {
+				changed = false;
+				float min = monitor.getMinValue();
+				float value = min + getCurrentProgress() * (monitor.getMaxValue() - min);
+				if (value != monitor.getCurrentValue())
+					monitor.setCurrentValue(value);
+			} finally {
+				writing.set(false);
+			}
+		}
+	}
+
+	/**
+	 * Clamps a progress value between 0 and 1, treating NaN as 0.
+	 */
+	private static float clamp(double progress)
+	{
+		if (!(progress > 0.0))
+			return 0f;
+		return progress < 1.0 ? (float)progress : 1f;
+	}
+
+	/**
+	 * The weighted link from a child to its parent.
+	 */
+	private static class Link
+	{
+		/** The parent composite. */
+		private CompositeProgressMonitor parent;
+		/** The child's weight. */
+		private double weight;
+		/** The progress last reported by the child (as double bits). */
+		private AtomicLong reportedProgress;
+
+		Link(CompositeProgressMonitor parent, float weight)
+		{
+			this.parent = parent;
+			this.weight = weight;
+			this.reportedProgress = new AtomicLong(Double.doubleToRawLongBits(0.0));
+		}
+
+		/**
+		 * Reports the child's latest progress to the parent.
+		 */
+		void report(ProgressMonitor child)
+		{
+			// repeat if the child moved again while reporting, so the latest report always wins.
+			double progress;
+			do {
+				progress = clamp(child.getCurrentProgress());
+				double prev = Double.longBitsToDouble(reportedProgress.getAndSet(Double.doubleToRawLongBits(progress)));
+				if (progress != prev)
+					parent.progressSum.add(weight * (progress - prev));
+			} while (progress != clamp(child.getCurrentProgress()));
+
+			parent.childChanged();
+		}
+	}
+
+	/**
+	 * A child monitor.
+	 */
+	private static class Child extends ProgressMonitor
+	{
+		/** The link to the parent. */
+		private Link link;
+
+		Child(Link link)
+		{
+			super();
+			this.link = link;
+		}
+
+		@Override
+		public void setMinValue(float minValue)
+		{
+			super.setMinValue(minValue);
+			link.report(this);
+		}
+
+		@Override
+		public void setMaxValue(float maxValue)
+		{
+			super.setMaxValue(maxValue);
+			link.report(this);
+		}
+
+		@Override
+		public void setCurrentValue(float currentValue)
+		{
+			super.setCurrentValue(currentValue);
+			link.report(this);
+		}
+	}
+
+}
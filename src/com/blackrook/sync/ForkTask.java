@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Black Rook Software
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.sync;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+
+import com.blackrook.sync.pool.ThreadPool;
+
+/**
+ * A {@link ResultTask} for recursive, divide-and-conquer work that runs on a {@link ThreadPool}.
+ * <p>
+ * Implementors override {@link #compute()}, which either computes a small problem directly, or
+ * splits it into smaller ForkTasks, hands them to the pool via {@link #fork(ForkTask)}, and
+ * combines their results via {@link #join()}:
+ * <pre>
+ * protected Long compute()
+ * {
+ *     if (end - start &lt;= THRESHOLD)
+ *         return sumDirectly(start, end);
+ *     int mid = (start + end) / 2;
+ *     SumTask left = fork(new SumTask(array, start, mid));
+ *     long right = new SumTask(array, mid, end).compute();
+ *     return left.join() + right;
+ * }
+ * </pre>
+ * <p>
+ * Joining a subtask that no worker has started yet runs it on the joining thread (whoever moves
+ * it out of the ready state first runs it, and the pool skips it when it gets to it), so threads
+ * never block on work that is still queued, and the pool cannot deadlock no matter how deep the
+ * recursion goes. Joining a subtask that another worker is already running takes other queued work off
+ * the pool and runs it while that worker finishes, and only blocks once the pool's queue is empty.
+ * @param <V> the result type.
+ * @author Matthew Tropiano
+ * @since 2.7.0
+ */
+public abstract class ForkTask<V> extends ResultTask<V>
+{
+	/** The pool that this task and its subtasks run on. */
+	private volatile ThreadPool<? super ForkTask<?>> pool;
+
+	/**
+	 * Creates a new fork task.
+	 */
+	public ForkTask()
+	{
+		super();
+		this.pool = null;
+	}
+
+	/**
+	 * Hands this task to a pool as the root of a computation.
+	 * Its subtasks will be forked onto the same pool.
+	 * @param pool the pool to run on.
+	 * @return itself.
+	 */
+	public final ForkTask<V> fork(ThreadPool<? super ForkTask<?>> pool)
+	{
+		this.pool = pool;
+		pool.execute(this);
+		return this;
+	}
+
+	/**
+	 * Runs this task on the current thread as the root of a computation,
+	 * with its subtasks forked onto a pool, and returns its result.
+	 * @param pool the pool to fork subtasks onto.
+	 * @return the result.
+	 * @throws CancellationException if the task was cancelled before it could finish.
+	 * @throws CompletionException if the task threw a checked exception (as its cause).
+	 */
+	public final V invoke(ThreadPool<? super ForkTask<?>> pool)
+	{
+		this.pool = pool;
+		run();
+		return join();
+	}
+
+	/**
+	 * Hands a subtask to the same pool as this task.
+	 * Meant to be called from {@link #compute()}.
+	 * If this task is not running on a pool, the subtask is left to run when it is joined.
+	 * @param <S> the subtask result type.
+	 * @param <F> the subtask type.
+	 * @param subtask the subtask to fork.
+	 * @return the subtask.
+	 */
+	protected final <S, F extends ForkTask<S>> F fork(F subtask)
+	{
+		ThreadPool<? super ForkTask<?>> p = pool;
+		ForkTask<S> forked = subtask;
+		forked.pool = p;
+		if (p != null)
+			p.execute(forked);
+		return subtask;
+	}
+
+	/**
+	 * Waits for this task to finish and returns its result.
+	 * If no thread has started this task yet, it is run on the current thread instead.
+	 * If another thread is running it, the current thread runs other work queued on the pool 
+	 * until it is done or the queue is empty, and then waits.
+	 * @see ThreadPool#runQueued()
+	 * @return the result.
+	 * @throws CancellationException if the task was cancelled before it could finish.
+	 * @throws CompletionException if the task threw a checked exception (as its cause).
+	 */
+	public final V join()
+	{
+		// does nothing if a worker got to it first.
+		if (isReady())
+			run();
+		ThreadPool<? super ForkTask<?>> p = pool;
+		if (p != null)
+		{
+			while (!isDone())
+			{
+				if (!p.runQueued())
+					break;
+			}
+		}
+		return waitForResult();
+	}
+
+}
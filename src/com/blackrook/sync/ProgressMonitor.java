@@ -7,6 +7,13 @@
  ******************************************************************************/
 package com.blackrook.sync;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import com.blackrook.commons.list.List;
 
 /**
@@ -14,21 +21,57 @@ import com.blackrook.commons.list.List;
  * Essentially, this contains a few fields for storing a starting
  * value, an ending value, a flag for an "indeterminate progress" indicator,
  * and the current value.
+ * <p>
+ * By default, every change to the current value notifies the bound listeners on the thread that made it.
+ * Monitors that are updated very often can coalesce these notifications via 
+ * {@link #setCoalescing(long, float, Executor)}: the current value is then just stored, and listeners are
+ * notified of the latest value at most once per interval or once it moves by a minimum amount, optionally 
+ * on another thread, so that the updating thread never waits on a slow listener.
  * @author Matthew Tropiano
  */
 public class ProgressMonitor
 {
+	/** Time in milliseconds that the idle trailing notification timer thread waits before ending. */
+	private static final long TRAILING_TIMER_KEEPALIVE = 1000L;
+	/** Shared timer for trailing coalesced notifications, created on first use. */
+	private static ScheduledExecutorService trailingTimer = null;
+	
 	/** The minimum value. */
-	protected float minValue;
+	protected volatile float minValue;
 	/** The maximum value. */
-	protected float maxValue;
+	protected volatile float maxValue;
 	/** Indeterminate flag. */
-	protected boolean indeterminate;
+	protected volatile boolean indeterminate;
 	/** The current value. */
-	protected float currentValue;
+	protected volatile float currentValue;
 
 	protected List<ProgressMonitorListener> listeners;
 	
+	/** Is current value notification coalesced? */
+	private volatile boolean coalescing;
+	/** Minimum time between coalesced notifications in nanoseconds. */
+	private volatile long notifyIntervalNanos;
+	/** Minimum value change for a coalesced notification. */
+	private volatile float notifyDelta;
+	/** Executor for coalesced notifications. Can be null. */
+	private volatile Executor notifyExecutor;
+	/** Last value passed to listeners. */
+	private volatile float lastNotifiedValue;
+	/** Time of the last coalesced notification in nanoseconds. */
+	private volatile long lastNotifyNanos;
+	/** Set if a flush was requested. */
+	private volatile boolean flushRequested;
+	/** Set while a coalesced notification is pending or in progress. */
+	private AtomicBoolean notifying;
+	/** The runnable handed to the notification executor. */
+	private Runnable notifier;
+	/** Set while a trailing notification is scheduled. */
+	private AtomicBoolean trailingScheduled;
+	/** The runnable handed to the trailing notification timer. */
+	private Runnable trailingNotifier;
+	/** Rate estimator fed by value changes. Can be null. */
+	private volatile ProgressRateEstimator rateEstimator;
+	
 	/**
 	 * Creates a new ProgressMonitor setting Indeterminate to false,
 	 * the min and current values to 0, and the max to 1.
@@ -49,6 +92,35 @@ public class ProgressMonitor
 		this.indeterminate = false;
 		this.currentValue = minValue;
 		listeners = new List<ProgressMonitorListener>(3);
+		
+		this.coalescing = false;
+		this.notifyIntervalNanos = 0L;
+		this.notifyDelta = 0f;
+		this.notifyExecutor = null;
+		this.lastNotifiedValue = minValue;
+		this.lastNotifyNanos = System.nanoTime();
+		this.flushRequested = false;
+		this.notifying = new AtomicBoolean(false);
+		this.notifier = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				notifyCurrent();
+			}
+		};
+		this.trailingScheduled = new AtomicBoolean(false);
+		this.trailingNotifier = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				trailingScheduled.set(false);
+				if (coalescing)
+					requestCoalescedNotify();
+			}
+		};
+		this.rateEstimator = null;
 	}
 
 	/**
@@ -135,7 +207,255 @@ public class ProgressMonitor
 	{
 		float oldVal = this.currentValue;
 		this.currentValue = currentValue;
-		fireCurrentChanged(oldVal, currentValue);
+		ProgressRateEstimator estimator = rateEstimator;
+		if (estimator != null)
+			estimator.update(currentValue);
+		if (coalescing)
+			requestCoalescedNotify();
+		else
+			fireCurrentChanged(oldVal, currentValue);
+	}
+	
+	/**
+	 * Turns on coalescing of "current value changed" notifications.
+	 * <p>
+	 * While coalescing, {@link #setCurrentValue(float)} only stores the new value, and listeners
+	 * are notified of the latest value (with the last value they were notified of as the old value) 
+	 * once at least <code>minInterval</code> milliseconds passed since the last notification, or 
+	 * once the value moved by at least <code>minDelta</code> since then, whichever comes first.
+	 * If both are 0, every change triggers a notification, unless one is already pending.
+	 * </p>
+	 * <p>
+	 * If there is a minimum interval, a change that does not trigger a notification schedules one for 
+	 * the end of the interval instead, so listeners always see the latest value once updates stop,
+	 * without calling {@link #flush()}. Only one is scheduled at a time, and it picks up every change made
+	 * until it runs. It is started from a shared timer thread, so it runs the listeners on that thread
+	 * if there is no executor.
+	 * </p>
+	 * <p>
+	 * If an executor is provided, notifications are handed to it, and the updating thread never
+	 * runs a listener. If the executor rejects a notification, the exception is thrown to the updating
+	 * thread, and the next change tries again. Otherwise, the updating thread that triggers a notification runs the listeners.
+	 * Updates made while a notification is in progress are picked up by a later notification, 
+	 * or by {@link #flush()}.
+	 * </p>
+	 * @param minInterval the minimum time between notifications in milliseconds, or 0 for no time limit.
+	 * @param minDelta the value change that triggers a notification regardless of time, or 0 for no such change.
+	 * @param executor the executor to run notifications on, or null to run them on the updating thread.
+	 * @since 2.7.0
+	 */
+	public void setCoalescing(long minInterval, float minDelta, Executor executor)
+	{
+		this.notifyIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(minInterval, 0L));
+		this.notifyDelta = Math.max(minDelta, 0f);
+		this.notifyExecutor = executor;
+		this.lastNotifiedValue = getCurrentValue();
+		this.coalescing = true;
+	}
+	
+	/**
+	 * Turns off coalescing of "current value changed" notifications, after notifying
+	 * listeners of any pending change.
+	 * @since 2.7.0
+	 */
+	public void clearCoalescing()
+	{
+		flush();
+		this.coalescing = false;
+	}
+	
+	/**
+	 * Returns true if "current value changed" notifications are coalesced.
+	 * @since 2.7.0
+	 */
+	public boolean isCoalescing()
+	{
+		return coalescing;
+	}
+	
+	/**
+	 * Notifies listeners of the latest current value now, if it changed since the last
+	 * coalesced notification. Does nothing if notifications are not coalesced.
+	 * Call this after the last update of a coalesced monitor, so that listeners see the final value.
+	 * @since 2.7.0
+	 */
+	public void flush()
+	{
+		if (!coalescing)
+			return;
+		flushRequested = true;
+		requestCoalescedNotify();
+	}
+	
+	/**
+	 * Checks if a coalesced notification is due.
+	 */
+	private boolean isNotifyDue(float value)
+	{
+		if (flushRequested)
+			return true;
+		
+		float delta = notifyDelta;
+		long interval = notifyIntervalNanos;
+		if (delta > 0f && Math.abs(value - lastNotifiedValue) >= delta)
+			return true;
+		if (interval > 0L)
+			return System.nanoTime() - lastNotifyNanos >= interval;
+		return delta <= 0f;
+	}
+	
+	/**
+	 * Starts a coalesced "current value changed" notification for the value returned 
+	 * by {@link #getCurrentValue()}, if one is due and none are pending, or schedules one
+	 * for the end of the interval if it is not due yet.
+	 * Subclasses that derive their current value from something else should call this
+	 * when it changes, while coalescing.
+	 * @since 2.7.0
+	 */
+	protected final void requestCoalescedNotify()
+	{
+		float value = getCurrentValue();
+		if (!isNotifyDue(value))
+		{
+			if (value != lastNotifiedValue)
+				scheduleTrailingNotify();
+			return;
+		}
+		if (!notifying.compareAndSet(false, true))
+			return;
+		
+		Executor executor = notifyExecutor;
+		if (executor != null)
+		{
+			boolean handed = false;
+			try {
+				executor.execute(notifier);
+				handed = true;
+			} finally {
+				// a rejected notification must not block all later ones.
+				if (!handed)
+					notifying.set(false);
+			}
+		}
+		else
+			notifyCurrent();
+	}
+	
+	/**
+	 * Schedules a notification for the end of the current interval, if there is an interval
+	 * and none are scheduled.
+	 */
+	private void scheduleTrailingNotify()
+	{
+		long interval = notifyIntervalNanos;
+		if (interval <= 0L || !trailingScheduled.compareAndSet(false, true))
+			return;
+		long delay = Math.max(lastNotifyNanos + interval - System.nanoTime(), 0L);
+		getTrailingTimer().schedule(trailingNotifier, delay, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Gets the timer used for trailing notifications, creating it if needed.
+	 */
+	private static synchronized ScheduledExecutorService getTrailingTimer()
+	{
+		if (trailingTimer == null)
+		{
+			ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread thread = new Thread(r, "ProgressMonitor-Trailing");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			timer.setKeepAliveTime(TRAILING_TIMER_KEEPALIVE, TimeUnit.MILLISECONDS);
+			timer.allowCoreThreadTimeOut(true);
+			trailingTimer = timer;
+		}
+		return trailingTimer;
+	}
+	
+	/**
+	 * Notifies the listeners of the latest current value.
+	 * Must only be called by the thread that set the notifying flag.
+	 */
+	private void notifyCurrent()
+	{
+		try {
+			flushRequested = false;
+			float oldVal = lastNotifiedValue;
+			float newVal = getCurrentValue();
+			lastNotifiedValue = newVal;
+			lastNotifyNanos = System.nanoTime();
+			if (oldVal != newVal)
+				fireCurrentChanged(oldVal, newVal);
+		} finally {
+			notifying.set(false);
+		}
+		
+		// catch updates or flushes that came in while notifying.
+		if (getCurrentValue() != lastNotifiedValue || flushRequested)
+			requestCoalescedNotify();
+	}
+	
+	/**
+	 * Sets the estimator that tracks the rate of change of the current value.
+	 * It is updated with every new current value, starting from the current one.
+	 * @param estimator the estimator, or null to stop estimating.
+	 * @since 2.7.0
+	 */
+	public void setRateEstimator(ProgressRateEstimator estimator)
+	{
+		if (estimator != null)
+			estimator.update(getCurrentValue());
+		this.rateEstimator = estimator;
+	}
+	
+	/**
+	 * Gets the estimator that tracks the rate of change of the current value, if any.
+	 * @since 2.7.0
+	 */
+	public ProgressRateEstimator getRateEstimator()
+	{
+		return rateEstimator;
+	}
+	
+	/**
+	 * Gets the estimated rate of change of the current value in units per second,
+	 * or 0 if there is no rate estimator.
+	 * @since 2.7.0
+	 */
+	public double getRate()
+	{
+		ProgressRateEstimator estimator = rateEstimator;
+		return estimator != null ? estimator.getRate() : 0.0;
+	}
+	
+	/**
+	 * Gets the estimated time until the current value reaches the max value.
+	 * @return the time in milliseconds, or -1 if it cannot be estimated or there is no rate estimator.
+	 * @since 2.7.0
+	 * @see ProgressRateEstimator#getEstimatedTimeRemaining(double)
+	 */
+	public long getEstimatedTimeRemaining()
+	{
+		ProgressRateEstimator estimator = rateEstimator;
+		return estimator != null ? estimator.getEstimatedTimeRemaining(maxValue) : -1L;
+	}
+	
+	/**
+	 * Checks if the current value has not changed for a while.
+	 * @param threshold the time without a change, in milliseconds, that counts as a stall.
+	 * @return true if stalled, false if not or there is no rate estimator.
+	 * @since 2.7.0
+	 */
+	public boolean isStalled(long threshold)
+	{
+		ProgressRateEstimator estimator = rateEstimator;
+		return estimator != null && estimator.isStalled(threshold);
 	}
 	
 	/**
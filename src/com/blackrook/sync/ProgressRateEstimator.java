@@ -0,0 +1,232 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Black Rook Software
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.sync;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Estimates the rate of progress of something, its time remaining, and whether it has stalled,
+ * from a series of progress values.
+ * <p>
+ * The rate is an exponentially weighted moving average of the rate between samples, where older
+ * samples lose their weight over the estimator's time constant. Updates that come in faster than
+ * the minimum sample interval are folded into the next sample, and the estimator uses the same small
+ * amount of memory forever. Samples are swapped in without locking, and only one of the updates that
+ * race for a sample takes it, so updates between samples cost a clock read, a few volatile reads, and
+ * a comparison, even when many threads update the same estimator.
+ * <p>
+ * Reading the rate (or anything based on it) counts the time since the last sample as one more sample,
+ * so if updates stop coming, or the value stops changing, the rate falls off and the estimated time
+ * remaining grows, instead of staying where they were at the last sample.
+ * <p>
+ * All methods are thread-safe.
+ * @author Matthew Tropiano
+ * @since 2.7.0
+ * @see ProgressMonitor#setRateEstimator(ProgressRateEstimator)
+ * @see Task#setRateEstimator(ProgressRateEstimator)
+ */
+public class ProgressRateEstimator
+{
+	/** Default time constant in milliseconds. */
+	public static final long DEFAULT_TIME_CONSTANT = 5000L;
+	/** Default minimum sample interval in milliseconds. */
+	public static final long DEFAULT_SAMPLE_INTERVAL = 10L;
+
+	/** Time constant in nanoseconds. */
+	private double timeConstantNanos;
+	/** Minimum sample interval in nanoseconds. */
+	private long sampleIntervalNanos;
+
+	/** The last sample, or null if nothing was recorded yet. */
+	private AtomicReference<Sample> sample;
+	/** Most recent value. */
+	private volatile double latestValue;
+	/** Time of the last change in value. */
+	private volatile long lastProgressNanos;
+
+	/**
+	 * Creates a new estimator with the default time constant and sample interval.
+	 */
+	public ProgressRateEstimator()
+	{
+		this(DEFAULT_TIME_CONSTANT, DEFAULT_SAMPLE_INTERVAL);
+	}
+
+	/**
+	 * Creates a new estimator.
+	 * @param timeConstant the time in milliseconds over which the weight of a sample decays to about 37%.
+	 * 		Smaller values react faster, larger values are smoother. Must be greater than 0.
+	 * @param sampleInterval the minimum time in milliseconds between samples.
+	 * @throws IllegalArgumentException if the time constant is 0 or less, or the sample interval is less than 0.
+	 */
+	public ProgressRateEstimator(long timeConstant, long sampleInterval)
+	{
+		if (timeConstant <= 0L)
+			throw new IllegalArgumentException("Time constant must be greater than 0.");
+		if (sampleInterval < 0L)
+			throw new IllegalArgumentException("Sample interval must be 0 or greater.");
+		this.timeConstantNanos = TimeUnit.MILLISECONDS.toNanos(timeConstant);
+		this.sampleIntervalNanos = TimeUnit.MILLISECONDS.toNanos(sampleInterval);
+		this.sample = new AtomicReference<Sample>(null);
+		reset();
+	}
+
+	/**
+	 * Forgets all samples.
+	 */
+	public void reset()
+	{
+		sample.set(null);
+		latestValue = 0.0;
+		lastProgressNanos = 0L;
+	}
+
+	/**
+	 * Records the current progress value.
+	 * @param value the current value.
+	 */
+	public void update(double value)
+	{
+		update(value, System.nanoTime());
+	}
+
+	/**
+	 * Records a progress value at a specific time.
+	 * @param value the value.
+	 * @param nanoTime the time of the value, from {@link System#nanoTime()}.
+	 */
+	public void update(double value, long nanoTime)
+	{
+		if (value != latestValue)
+			lastProgressNanos = nanoTime;
+		latestValue = value;
+
+		Sample last = sample.get();
+		if (last == null)
+		{
+			if (sample.compareAndSet(null, new Sample(value, nanoTime, 0.0, false)))
+				lastProgressNanos = nanoTime;
+			return;
+		}
+
+		long dt = nanoTime - last.nanos;
+		if (dt <= 0L || dt < sampleIntervalNanos)
+			return;
+
+		// if another thread took this sample, this value is folded into the next one.
+		sample.compareAndSet(last, last.next(value, nanoTime, timeConstantNanos));
+	}
+
+	/**
+	 * Returns the estimated rate of progress in units per second,
+	 * or 0 if there are not enough samples yet.
+	 */
+	public double getRate()
+	{
+		return getRatePerNano(System.nanoTime()) * 1e9;
+	}
+
+	/**
+	 * Returns the most recent value recorded.
+	 */
+	public double getLatestValue()
+	{
+		return latestValue;
+	}
+
+	/**
+	 * Returns the estimated time until a target value is reached, at the current rate.
+	 * @param target the target value.
+	 * @return the estimated time remaining in milliseconds, 0 if the target was reached,
+	 * 		or -1 if it cannot be estimated (no rate, or progress is going the wrong way).
+	 */
+	public long getEstimatedTimeRemaining(double target)
+	{
+		double remaining = target - latestValue;
+		if (remaining <= 0.0)
+			return 0L;
+		double rate = getRatePerNano(System.nanoTime());
+		if (!(rate > 0.0))
+			return -1L;
+		return (long)(remaining / rate / 1e6);
+	}
+
+	/**
+	 * Returns the time since the value last changed, in milliseconds,
+	 * or -1 if nothing was recorded yet.
+	 */
+	public long getTimeSinceProgress()
+	{
+		if (sample.get() == null)
+			return -1L;
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastProgressNanos);
+	}
+
+	/**
+	 * Checks if progress has stalled.
+	 * @param threshold the amount of time without a change in value, in milliseconds, that counts as a stall.
+	 * @return true if the value has not changed for at least the threshold, false if not or nothing was recorded yet.
+	 */
+	public boolean isStalled(long threshold)
+	{
+		return getTimeSinceProgress() >= threshold;
+	}
+
+	/**
+	 * Returns the rate in units per nanosecond, counting the time since the last sample
+	 * (up to the latest value) as one more sample.
+	 */
+	private double getRatePerNano(long nanoTime)
+	{
+		Sample last = sample.get();
+		if (last == null)
+			return 0.0;
+		long dt = nanoTime - last.nanos;
+		if (dt <= 0L || dt < sampleIntervalNanos)
+			return last.rate;
+		return last.next(latestValue, nanoTime, timeConstantNanos).rate;
+	}
+
+	/**
+	 * A single sample. Immutable.
+	 */
+	private static class Sample
+	{
+		/** Value at the sample. */
+		private final double value;
+		/** Time of the sample. */
+		private final long nanos;
+		/** Rate estimate in units per nanosecond. */
+		private final double rate;
+		/** Has a rate been computed? */
+		private final boolean hasRate;
+
+		Sample(double value, long nanos, double rate, boolean hasRate)
+		{
+			this.value = value;
+			this.nanos = nanos;
+			this.rate = rate;
+			this.hasRate = hasRate;
+		}
+
+		/**
+		 * Returns the sample after this one, for a later value and time.
+		 */
+		Sample next(double nextValue, long nextNanos, double timeConstantNanos)
+		{
+			long dt = nextNanos - nanos;
+			double sampleRate = (nextValue - value) / dt;
+			double nextRate = hasRate 
+				? rate + (1.0 - Math.exp(-dt / timeConstantNanos)) * (sampleRate - rate) 
+				: sampleRate;
+			return new Sample(nextValue, nextNanos, nextRate, true);
+		}
+	}
+
+}
@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Black Rook Software
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.sync;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+
+/**
+ * A {@link Task} that computes a result.
+ * <p>
+ * Implementors override {@link #compute()} instead of {@link #doTask()}, and the returned
+ * value is kept by the task. The result is safe to read from any thread once the task is done.
+ * @param <V> the result type.
+ * @author Matthew Tropiano
+ * @since 2.7.0
+ */
+public abstract class ResultTask<V> extends Task
+{
+	/** The computed result. */
+	private volatile V result;
+	/** Set if {@link #compute()} returned normally. */
+	private volatile boolean computed;
+
+	/**
+	 * Creates a new result task in the ready state.
+	 */
+	public ResultTask()
+	{
+		super();
+		this.result = null;
+		this.computed = false;
+	}
+
+	/**
+	 * Computes this task's result.
+	 * Once a thread enters this method via {@link #run()}, it has left the "ready" state. 
+	 * @return the result.
+	 * @throws Throwable if anything goes wrong.
+	 */
+	protected abstract V compute() throws Throwable;
+
+	@Override
+	protected final void doTask() throws Throwable
+	{
+		result = compute();
+		computed = true;
+	}
+
+	/**
+	 * Returns true if this task finished and produced a result, false otherwise.
+	 */
+	public final boolean hasResult()
+	{
+		return computed;
+	}
+
+	/**
+	 * Returns this task's result without waiting, or null if it did not produce one (yet).
+	 * @see #hasResult()
+	 */
+	public final V getResult()
+	{
+		return result;
+	}
+
+	/**
+	 * Makes the current thread wait until the task completes, and returns its result.
+	 * @return the result.
+	 * @throws CancellationException if the task was cancelled before it produced a result.
+	 * @throws CompletionException if the task threw a checked exception (as its cause).
+	 * 		Unchecked exceptions and errors are rethrown as-is.
+	 * @see #waitFor()
+	 */
+	public final V waitForResult()
+	{
+		waitFor();
+
+		Throwable t = getThrowable();
+		if (t instanceof RuntimeException)
+			throw (RuntimeException)t;
+		else if (t instanceof Error)
+			throw (Error)t;
+		else if (t != null)
+			throw new CompletionException(t);
+		else if (!computed)
+			throw new CancellationException("Task was cancelled.");
+
+		return result;
+	}
+
+}
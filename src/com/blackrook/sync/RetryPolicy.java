@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Black Rook Software
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.sync;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.blackrook.sync.pool.WorkPool;
+
+/**
+ * A policy for retrying failed work with exponential backoff.
+ * <p>
+ * The delay before retry <i>n</i> (starting at 1) is <code>initialDelay * multiplier<sup>n-1</sup></code>,
+ * capped at the maximum delay, and then randomly shortened by up to the jitter fraction, so that
+ * many things that failed at the same time do not all retry at the same time.
+ * <p>
+ * By default, every {@link Throwable} is retryable. Override {@link #isRetryable(Throwable)} to
+ * only retry certain failures.
+ * <p>
+ * RetryPolicies are immutable, and can be shared across pools.
+ * @author Matthew Tropiano
+ * @since 2.7.0
+ * @see WorkPool#setRetryPolicy(RetryPolicy)
+ */
+public class RetryPolicy
+{
+	/** Default initial delay in milliseconds. */
+	public static final long DEFAULT_INITIAL_DELAY = 100L;
+	/** Default maximum delay in milliseconds. */
+	public static final long DEFAULT_MAX_DELAY = 30000L;
+	/** Default delay multiplier. */
+	public static final double DEFAULT_MULTIPLIER = 2.0;
+	/** Default jitter fraction. */
+	public static final double DEFAULT_JITTER = 0.5;
+
+	/** Maximum amount of attempts, including the first. */
+	private int maxAttempts;
+	/** Delay before the first retry in milliseconds. */
+	private long initialDelay;
+	/** Maximum delay in milliseconds. */
+	private long maxDelay;
+	/** Delay multiplier per retry. */
+	private double multiplier;
+	/** Fraction of the delay that can be randomly removed. */
+	private double jitter;
+
+	/**
+	 * Creates a new retry policy with the default delays, multiplier, and jitter.
+	 * @param maxAttempts the maximum amount of attempts, including the first. Must be 1 or greater.
+	 * @throws IllegalArgumentException if maxAttempts is less than 1.
+	 */
+	public RetryPolicy(int maxAttempts)
+	{
+		this(maxAttempts, DEFAULT_INITIAL_DELAY, DEFAULT_MAX_DELAY, DEFAULT_MULTIPLIER, DEFAULT_JITTER);
+	}
+
+	/**
+	 * Creates a new retry policy.
+	 * @param maxAttempts the maximum amount of attempts, including the first. Must be 1 or greater.
+	 * @param initialDelay the delay before the first retry in milliseconds.
+	 * @param maxDelay the maximum delay before any retry in milliseconds.
+	 * @param multiplier the amount that the delay is multiplied by for each retry. Must be 1 or greater.
+	 * @param jitter the fraction of each delay (0 to 1) that can be randomly removed.
+	 * @throws IllegalArgumentException if any value is out of range.
+	 */
+	public RetryPolicy(int maxAttempts, long initialDelay, long maxDelay, double multiplier, double jitter)
+	{
+		if (maxAttempts < 1)
+			throw new IllegalArgumentException("Max attempts must be 1 or greater.");
+		if (initialDelay < 0L || maxDelay < initialDelay)
+			throw new IllegalArgumentException("Delays must be 0 or greater, and max delay must not be less than the initial delay.");
+		if (multiplier < 1.0)
+			throw new IllegalArgumentException("Multiplier must be 1 or greater.");
+		if (jitter < 0.0 || jitter > 1.0)
+			throw new IllegalArgumentException("Jitter must be between 0 and 1.");
+
+		this.maxAttempts = maxAttempts;
+		this.initialDelay = initialDelay;
+		this.maxDelay = maxDelay;
+		this.multiplier = multiplier;
+		this.jitter = jitter;
+	}
+
+	/**
+	 * Returns the maximum amount of attempts, including the first.
+	 */
+	public int getMaxAttempts()
+	{
+		return maxAttempts;
+	}
+
+	/**
+	 * Returns the delay before the first retry in milliseconds.
+	 */
+	public long getInitialDelay()
+	{
+		return initialDelay;
+	}
+
+	/**
+	 * Returns the maximum delay before any retry in milliseconds.
+	 */
+	public long getMaxDelay()
+	{
+		return maxDelay;
+	}
+
+	/**
+	 * Returns the amount that the delay is multiplied by for each retry.
+	 */
+	public double getMultiplier()
+	{
+		return multiplier;
+	}
+
+	/**
+	 * Returns the fraction of each delay that can be randomly removed.
+	 */
+	public double getJitter()
+	{
+		return jitter;
+	}
+
+	/**
+	 * Checks if a failure can be retried at all.
+	 * By default, this returns true for everything.
+	 * @param t the {@link Throwable} that caused the failure.
+	 * @return true if retryable, false if not.
+	 */
+	public boolean isRetryable(Throwable t)
+	{
+		return true;
+	}
+
+	/**
+	 * Checks if a failure should be retried.
+	 * @param attempts the amount of attempts made so far, including the one that failed.
+	 * @param t the {@link Throwable} that caused the failure.
+	 * @return true if there are attempts left and the failure is retryable, false if not.
+	 */
+	public boolean shouldRetry(int attempts, Throwable t)
+	{
+		return attempts < maxAttempts && isRetryable(t);
+	}
+
+	/**
+	 * Gets the delay before a retry, including jitter.
+	 * @param retry the retry number, starting at 1 for the first retry.
+	 * @return the delay in milliseconds.
+	 */
+	public long getDelay(int retry)
+	{
+		double delay = initialDelay * Math.pow(multiplier, Math.max(retry - 1, 0));
+		if (delay > maxDelay)
+			delay = maxDelay;
+		if (jitter > 0.0)
+			delay -= delay * jitter * ThreadLocalRandom.current().nextDouble();
+		return (long)delay;
+	}
+
+}
@@ -7,7 +7,16 @@
  ******************************************************************************/
 package com.blackrook.sync;
 
-import com.blackrook.commons.util.ThreadUtils;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.blackrook.commons.list.List;
 import com.blackrook.sync.pool.ThreadPool;
 
 /**
@@ -44,6 +53,12 @@ import com.blackrook.sync.pool.ThreadPool;
  * 			<td>false</td>
  * 		</tr>
  * 		<tr>
+ * 			<td>Task was cancelled via {@link #cancel()} before it was executed (it will never run).</td>
+ * 			<td>false</td>
+ * 			<td><b>true</b></td>
+ * 			<td><b>true</b></td>
+ * 		</tr>
+ * 		<tr>
  * 			<td>Task is still running, but {@link #cancel()} was called on it.</td>
  * 			<td>false</td>
  * 			<td>false</td>
@@ -61,52 +76,129 @@ import com.blackrook.sync.pool.ThreadPool;
  * <p>Once a task has been executed, it cannot be executed again.</p>
  * <p>Any and all exceptions or throwable objects thrown during execution are caught and returned via {@link #hasThrowable()}
  * once the task has completed.</p>
- * <p>It is the sole responsibility of the implementor to utilize {@link #cancel()} via {@link #isCancelled()}.</p>
+ * <p>It is the sole responsibility of the implementor to utilize {@link #cancel()} via {@link #isCancelled()}
+ * or {@link #checkCancelled()}, once the task is running. A task that is cancelled before it runs never runs at all, and
+ * {@link #cancel(boolean)} can also interrupt the thread running the task. Tasks can be grouped for cancellation
+ * via {@link CancellationScope}.</p>
+ * <p>Task state is safe to read from any thread. Threads can block until completion via {@link #waitFor()} or
+ * {@link #waitFor(long)}, or be notified of it via {@link #addListener(TaskListener)}.</p>
  * @author Matthew Tropiano
  * @since 2.1.0
  */
 public abstract class Task implements Runnable
 {
+	/** Task state: Ready. */
+	private static final int STATE_READY = 0;
+	/** Task state: Running. */
+	private static final int STATE_RUNNING = 1;
+	/** Task state: Done. */
+	private static final int STATE_DONE = 2;
+
+	/** Time in milliseconds that an idle spawn thread waits for another task before ending. */
+	private static final long SPAWN_THREAD_TIMEOUT = 1000L;
+	
+	/** Executor used for all spawned tasks, if set. */
+	private static volatile Executor spawnExecutor = null;
 
-	/** Task status: Ready. */
-	private boolean ready;
-	/** Task status: Done. */
-	private boolean done;
+	/** Task status: Ready, Running, or Done. */
+	private AtomicInteger state;
 	/** Task status: Cancelled. */
-	private boolean cancelled;
+	private volatile boolean cancelled;
 	/** Any and all things throwable that occurred during execution. */
-	private Throwable throwable;
+	private volatile Throwable throwable;
 	/** Task status: progress value. */
-	private float progress;
+	private volatile float progress;
 	/** Task status: max progress value. */
-	private float progressMax;
+	private volatile float progressMax;
+	/** Rate estimator fed by progress changes. Can be null. */
+	private volatile ProgressRateEstimator rateEstimator;
+
+	/** Latch released on completion. */
+	private CountDownLatch doneLatch;
+	/** Mutex for the listener list and running thread. */
+	private Object MUTEX = new Object();
+	/** Completion listeners. Set to null once they are called. */
+	private List<TaskListener> listeners;
+	/** The thread running this task, if running. */
+	private Thread runner;
+	/** Set if the running thread was interrupted by {@link #cancel(boolean)}. */
+	private boolean runnerInterrupted;
 
 	/**
 	 * Creates a new task in the ready state.
 	 */
 	public Task()
 	{
-		ready = true;
-		done = false;
+		state = new AtomicInteger(STATE_READY);
 		cancelled = false;
 		throwable = null;
 		progress = 0f;
 		progressMax = 0f;
+		rateEstimator = null;
+		doneLatch = new CountDownLatch(1);
+		listeners = new List<TaskListener>(2);
+		runner = null;
+		runnerInterrupted = false;
 	}
 	
 	@Override
 	public final void run()
 	{
-		if (ready)
+		if (!state.compareAndSet(STATE_READY, STATE_RUNNING))
+			return;
+
+		synchronized (MUTEX)
 		{
-			ready = false;
-			done = false;
-			try {
-				doTask();
-			} catch (Throwable t) {
-				throwable = t;
-			}
-			done = true;
+			runner = Thread.currentThread();
+		}
+		
+		try {
+			doTask();
+		} catch (Throwable t) {
+			throwable = t;
+		}
+		
+		boolean clearInterrupt;
+		synchronized (MUTEX)
+		{
+			runner = null;
+			clearInterrupt = runnerInterrupted;
+		}
+		// don't leave a cancellation interrupt set on a reused thread.
+		if (clearInterrupt)
+			Thread.interrupted();
+		
+		state.set(STATE_DONE);
+		finish();
+	}
+
+	/**
+	 * Releases all waiting threads, and calls the completion listeners.
+	 * The done state must be set before this is called.
+	 */
+	private void finish()
+	{
+		doneLatch.countDown();
+
+		List<TaskListener> toCall;
+		synchronized (MUTEX)
+		{
+			toCall = listeners;
+			listeners = null;
+		}
+		for (TaskListener listener : toCall)
+			callListener(listener);
+	}
+
+	/**
+	 * Calls a completion listener, ignoring anything it throws.
+	 */
+	private void callListener(TaskListener listener)
+	{
+		try {
+			listener.taskFinished(this);
+		} catch (Throwable t) {
+			// Listener problems are not the task's problems.
 		}
 	}
 
@@ -118,10 +210,42 @@ public abstract class Task implements Runnable
 	
 	/**
 	 * Tells the task that it must be cancelled.
+	 * Convenience method for <code>cancel(false)</code>.
+	 * @see #cancel(boolean)
 	 */
 	public final void cancel()
+	{
+		cancel(false);
+	}
+
+	/**
+	 * Tells the task that it must be cancelled.
+	 * <p>
+	 * If the task has not started yet, it is finished immediately without running, so that
+	 * threads waiting on it are released, and pools that have it queued can drop it.
+	 * If the task is running, it is flagged as cancelled, and if <code>interrupt</code> is true,
+	 * the thread running it is interrupted so that blocking calls in the task stop waiting.
+	 * </p>
+	 * @param interrupt if true, interrupt the thread running this task, if it is running.
+	 * @since 2.7.0
+	 */
+	public final void cancel(boolean interrupt)
 	{
 		cancelled = true;
+		if (state.compareAndSet(STATE_READY, STATE_DONE))
+		{
+			finish();
+			return;
+		}
+		
+		if (interrupt) synchronized (MUTEX)
+		{
+			if (runner != null && !runnerInterrupted)
+			{
+				runnerInterrupted = true;
+				runner.interrupt();
+			}
+		}
 	}
 
 	/**
@@ -129,7 +253,7 @@ public abstract class Task implements Runnable
 	 */
 	public final boolean isReady()
 	{
-		return ready;
+		return state.get() == STATE_READY;
 	}
 	
 	/**
@@ -137,7 +261,7 @@ public abstract class Task implements Runnable
 	 */
 	public final boolean isRunning()
 	{
-		return !isReady() && !isDone();
+		return state.get() == STATE_RUNNING;
 	}
 
 	/**
@@ -145,7 +269,7 @@ public abstract class Task implements Runnable
 	 */
 	public final boolean isDone()
 	{
-		return done;
+		return state.get() == STATE_DONE;
 	}
 	
 	/**
@@ -158,6 +282,19 @@ public abstract class Task implements Runnable
 		return cancelled;
 	}
 	
+	/**
+	 * Throws a {@link CancellationException} if this task was cancelled.
+	 * Meant to be called periodically from {@link #doTask()} - since a thrown exception
+	 * is caught by the task, this is a cheap way to end the task early.
+	 * @throws CancellationException if this task was cancelled.
+	 * @since 2.7.0
+	 */
+	protected final void checkCancelled()
+	{
+		if (cancelled)
+			throw new CancellationException("Task was cancelled.");
+	}
+	
 	/**
 	 * Sets the current progress value of this task.
 	 * @since 2.4.0
@@ -165,6 +302,9 @@ public abstract class Task implements Runnable
 	protected void setProgress(float progress)
 	{
 		this.progress = progress;
+		ProgressRateEstimator estimator = rateEstimator;
+		if (estimator != null)
+			estimator.update(progress);
 	}
 
 	/**
@@ -194,6 +334,68 @@ public abstract class Task implements Runnable
 		return progressMax;
 	}
 
+	/**
+	 * Sets the estimator that tracks the rate of progress of this task.
+	 * It is updated with every new progress value, starting from the current one.
+	 * @param estimator the estimator, or null to stop estimating.
+	 * @since 2.7.0
+	 */
+	public void setRateEstimator(ProgressRateEstimator estimator)
+	{
+		if (estimator != null)
+			estimator.update(progress);
+		this.rateEstimator = estimator;
+	}
+
+	/**
+	 * Gets the estimator that tracks the rate of progress of this task, if any.
+	 * @since 2.7.0
+	 */
+	public ProgressRateEstimator getRateEstimator()
+	{
+		return rateEstimator;
+	}
+
+	/**
+	 * Gets the estimated rate of progress of this task in units per second,
+	 * or 0 if there is no rate estimator.
+	 * @since 2.7.0
+	 */
+	public double getRate()
+	{
+		ProgressRateEstimator estimator = rateEstimator;
+		return estimator != null ? estimator.getRate() : 0.0;
+	}
+
+	/**
+	 * Checks if the progress value of this task has not changed for a while.
+	 * A task that is done is never stalled.
+	 * @param threshold the time without a change, in milliseconds, that counts as a stall.
+	 * @return true if stalled, false if not or there is no rate estimator.
+	 * @since 2.7.0
+	 */
+	public boolean isStalled(long threshold)
+	{
+		if (isDone())
+			return false;
+		ProgressRateEstimator estimator = rateEstimator;
+		return estimator != null && estimator.isStalled(threshold);
+	}
+
+	/**
+	 * Gets the estimated time until the progress value reaches the max progress value.
+	 * @return the time in milliseconds, 0 if this task is done, 
+	 * 		or -1 if it cannot be estimated or there is no rate estimator.
+	 * @since 2.7.0
+	 */
+	public long getEstimatedTimeRemaining()
+	{
+		if (isDone())
+			return 0L;
+		ProgressRateEstimator estimator = rateEstimator;
+		return estimator != null ? estimator.getEstimatedTimeRemaining(progressMax) : -1L;
+	}
+
 	/**
 	 * Returns a progress value equal to <code>{@link #getProgress()} / {@link #getProgressMax()}</code>. 
 	 * @since 2.4.0
@@ -237,11 +439,49 @@ public abstract class Task implements Runnable
 		Task.spawn(this, daemon);
 	}
 	
+	/**
+	 * Adds a listener to be called when this task completes.
+	 * If the task has already completed, the listener is called immediately on the current thread.
+	 * Anything thrown by the listener is ignored.
+	 * @param listener the listener to add.
+	 * @since 2.7.0
+	 */
+	public void addListener(TaskListener listener)
+	{
+		synchronized (MUTEX)
+		{
+			if (listeners != null)
+			{
+				listeners.add(listener);
+				return;
+			}
+		}
+		callListener(listener);
+	}
+	
+	/**
+	 * Removes a completion listener from this task.
+	 * @param listener the listener to remove.
+	 * @return true if removed, false if it was not added or the task already completed.
+	 * @since 2.7.0
+	 */
+	public boolean removeListener(TaskListener listener)
+	{
+		synchronized (MUTEX)
+		{
+			return listeners != null && listeners.remove(listener);
+		}
+	}
+	
 	/**
 	 * Makes the current thread wait until the task completes, 
 	 * either with an exception, cancellation, or successful
 	 * finish.
 	 * <p>
+	 * The waiting thread is parked until completion, and is not woken by interrupts.
+	 * If the thread was interrupted while waiting, its interrupt flag is set again before this returns.
+	 * </p>
+	 * <p>
 	 * NOTE: Do NOT call this without ensuring that the task will start,
 	 * or this will wait forever!
 	 * </p>
@@ -249,26 +489,85 @@ public abstract class Task implements Runnable
 	 */
 	public void waitFor()
 	{
-		while (!isDone()) ThreadUtils.sleep(1);
+		boolean interrupted = false;
+		while (true)
+		{
+			try {
+				doneLatch.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+	
+	/**
+	 * Makes the current thread wait until the task completes, 
+	 * either with an exception, cancellation, or successful
+	 * finish, or until the timeout elapses.
+	 * <p>
+	 * The waiting thread is parked until completion, and is not woken by interrupts.
+	 * If the thread was interrupted while waiting, its interrupt flag is set again before this returns.
+	 * </p>
+	 * @param timeoutMillis the maximum amount of time to wait in milliseconds.
+	 * @return true if the task completed, false if the timeout elapsed first.
+	 * @since 2.7.0
+	 */
+	public boolean waitFor(long timeoutMillis)
+	{
+		boolean interrupted = false;
+		boolean out;
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		while (true)
+		{
+			try {
+				out = doneLatch.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		return out;
+	}
+	
+	/**
+	 * Sets the executor used for running all spawned tasks.
+	 * If set, the daemon flag passed to {@link #spawn(Task, boolean)} is ignored, and
+	 * the executor decides which threads run the tasks.
+	 * @param executor the executor to use, or null to use the default shared spawn threads.
+	 * @since 2.7.0
+	 */
+	public static void setSpawnExecutor(Executor executor)
+	{
+		spawnExecutor = executor;
+	}
+	
+	/**
+	 * Gets the executor used for running all spawned tasks, 
+	 * or null if the default shared spawn threads are used.
+	 * @since 2.7.0
+	 */
+	public static Executor getSpawnExecutor()
+	{
+		return spawnExecutor;
 	}
 	
 	/**
 	 * Spawns a runnable asynchronously from the current thread to be monitored
 	 * from outside.
 	 * <p>
-	 * NOTE: This spawns a new {@link Thread} and should not be used often, as
-	 * creation of a new Thread can be expensive. If you must run many tasks outside
-	 * of the main thread, consider using {@link ThreadPool}.
+	 * The runnable is wrapped in a Task, and run the same way as {@link #spawn(Task)}.
 	 * </p> 
 	 * @param runnable the runnable to run.
 	 * @return a new Task for monitoring execution.
 	 */
 	public static final Task spawn(Runnable runnable)
 	{
-		Task out = new WrappedRunnableTask(runnable);
-		Thread t = new Thread(new WrappedRunnableTask(runnable));
-		t.start();
-		return out;
+		return spawn(new WrappedRunnableTask(runnable), false);
 	}
 	
 	/**
@@ -276,9 +575,7 @@ public abstract class Task implements Runnable
 	 * from outside. The task is NOT a daemon task, and will keep the JVM running
 	 * until it ends. 
 	 * <p>
-	 * NOTE: This spawns a new {@link Thread} and should not be used often, as
-	 * creation of a new Thread can be expensive. If you must run many tasks outside
-	 * of the main thread, consider using {@link ThreadPool}.
+	 * See {@link #spawn(Task, boolean)} for how the task is run.
 	 * </p> 
 	 * @param task the task to run.
 	 * @return the task itself.
@@ -293,9 +590,12 @@ public abstract class Task implements Runnable
 	 * from outside. Tasks set spawned as daemon tasks will be killed when non-daemon 
 	 * JVM threads end. 
 	 * <p>
-	 * NOTE: This spawns a new {@link Thread} and should not be used often, as
-	 * creation of a new Thread can be expensive. If you must run many tasks outside
-	 * of the main thread, consider using {@link ThreadPool}.
+	 * If an executor was set via {@link #setSpawnExecutor(Executor)}, the task is handed to it.
+	 * Otherwise, the task is run on a shared, unbounded set of spawn threads (one set for daemon tasks,
+	 * one for non-daemon tasks). An idle spawn thread is reused for the next spawned task, and ends
+	 * after being idle for a short while, so every spawned task still runs concurrently, but spawning
+	 * many tasks does not create a new {@link Thread} each time. If you must bound how many 
+	 * tasks run at once, consider using {@link ThreadPool}.
 	 * </p> 
 	 * @param task the task to run.
 	 * @param daemon is this a daemon task? true if so, false if not.
@@ -303,12 +603,48 @@ public abstract class Task implements Runnable
 	 */
 	public static final Task spawn(Task task, boolean daemon)
 	{
-		Thread t = new Thread(task);
-		t.setDaemon(daemon);
-		t.start();
+		Executor executor = spawnExecutor;
+		if (executor == null)
+			executor = daemon ? DaemonSpawnPool.EXECUTOR : SpawnPool.EXECUTOR;
+		executor.execute(task);
 		return task;
 	}
 
+	/**
+	 * Creates a default executor for spawned tasks.
+	 */
+	private static ThreadPoolExecutor createSpawnExecutor(final String namePrefix, final boolean daemon)
+	{
+		return new ThreadPoolExecutor(0, Integer.MAX_VALUE, SPAWN_THREAD_TIMEOUT, TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory()
+		{
+			private AtomicInteger threadCount = new AtomicInteger(0);
+			
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread out = new Thread(r, namePrefix + threadCount.getAndIncrement());
+				out.setDaemon(daemon);
+				return out;
+			}
+		});
+	}
+
+	/**
+	 * Holder for the non-daemon spawn executor, created on first use.
+	 */
+	private static class SpawnPool
+	{
+		private static final Executor EXECUTOR = createSpawnExecutor("TaskSpawn-", false);
+	}
+	
+	/**
+	 * Holder for the daemon spawn executor, created on first use.
+	 */
+	private static class DaemonSpawnPool
+	{
+		private static final Executor EXECUTOR = createSpawnExecutor("TaskSpawnDaemon-", true);
+	}
+
 	/**
 	 * A special task that is a wrapping of a runnable.
 	 */
@@ -0,0 +1,224 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Black Rook Software
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.sync;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A keyed cache of values that are loaded asynchronously via {@link ResultTask}s.
+ * <p>
+ * Every request for a key that is not cached yet shares a single loading task, so a value is only ever
+ * loaded once at a time, no matter how many threads ask for it (single-flight). Loaded values are kept
+ * until they are evicted by size (least-recently-used first) or by age, and failed or cancelled loads
+ * are dropped from the cache as soon as they finish, so the next request tries again. Loads that are
+ * still running are kept apart from loaded values, and are never evicted, so the size limit only
+ * counts loaded values.
+ * <p>
+ * Loads are handed to the cache's {@link Executor}. If there is no executor, a load runs on the thread
+ * that first requested the key, and every other requesting thread shares its task.
+ * @param <K> the key type.
+ * @param <V> the value type.
+ * @author Matthew Tropiano
+ * @since 2.7.0
+ */
+public class TaskCache<K, V>
+{
+	/** Value for no size limit or no expiration. */
+	public static final int UNBOUNDED = -1;
+
+	/** The executor to run loads with. Can be null. */
+	private Executor executor;
+	/** The loader. */
+	private TaskCacheLoader<K, V> loader;
+	/** Maximum amount of entries. */
+	private int maxSize;
+	/** Time to live in nanoseconds. */
+	private long timeToLiveNanos;
+
+	/** Map of key to loaded entry, in least-recently-used order. */
+	private LinkedHashMap<K, LoadTask> entries;
+	/** Map of key to entry that is still loading. Guarded by entries. */
+	private HashMap<K, LoadTask> loading;
+
+	/**
+	 * Creates a new cache with no size limit, whose values never expire.
+	 * @param executor the executor to run loads with, or null to run them on the requesting thread.
+	 * @param loader the loader for values.
+	 */
+	public TaskCache(Executor executor, TaskCacheLoader<K, V> loader)
+	{
+		this(executor, loader, UNBOUNDED, UNBOUNDED);
+	}
+
+	/**
+	 * Creates a new cache.
+	 * @param executor the executor to run loads with, or null to run them on the requesting thread.
+	 * @param loader the loader for values.
+	 * @param maxSize the maximum amount of entries to keep, or {@link #UNBOUNDED}.
+	 * @param timeToLiveMillis the time in milliseconds that a loaded value is kept, or {@link #UNBOUNDED}.
+	 */
+	public TaskCache(Executor executor, TaskCacheLoader<K, V> loader, int maxSize, long timeToLiveMillis)
+	{
+		this.executor = executor;
+		this.loader = loader;
+		this.maxSize = maxSize;
+		this.timeToLiveNanos = timeToLiveMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(timeToLiveMillis) : UNBOUNDED;
+		this.entries = new LinkedHashMap<K, LoadTask>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, LoadTask> eldest)
+			{
+				return TaskCache.this.maxSize > 0 && size() > TaskCache.this.maxSize;
+			}
+		};
+		this.loading = new HashMap<K, LoadTask>();
+	}
+
+	/**
+	 * Gets the task that loads (or loaded) the value for a key.
+	 * If no value is cached or loading for the key, a new load is started.
+	 * @param key the key.
+	 * @return the task for the key's value.
+	 */
+	public ResultTask<V> get(K key)
+	{
+		LoadTask task;
+		boolean start = false;
+		synchronized (entries)
+		{
+			task = entries.get(key);
+			if (task != null && task.isExpired())
+			{
+				entries.remove(key);
+				task = null;
+			}
+			if (task == null && (task = loading.get(key)) == null)
+			{
+				task = new LoadTask(key);
+				loading.put(key, task);
+				start = true;
+			}
+		}
+
+		if (start)
+		{
+			task.addListener(task);
+			if (executor != null)
+				executor.execute(task);
+			else
+				task.run();
+		}
+		return task;
+	}
+
+	/**
+	 * Gets the value for a key, waiting for it to load if it has to.
+	 * @param key the key.
+	 * @return the value.
+	 * @see ResultTask#waitForResult()
+	 */
+	public V getValue(K key)
+	{
+		return get(key).waitForResult();
+	}
+
+	/**
+	 * Removes a key from this cache.
+	 * If it is still loading, threads already waiting on it still get its value,
+	 * but the next request starts a new load.
+	 * @param key the key.
+	 */
+	public void invalidate(K key)
+	{
+		synchronized (entries)
+		{
+			entries.remove(key);
+			loading.remove(key);
+		}
+	}
+
+	/**
+	 * Removes every key from this cache.
+	 */
+	public void clear()
+	{
+		synchronized (entries)
+		{
+			entries.clear();
+			loading.clear();
+		}
+	}
+
+	/**
+	 * Returns the amount of keys cached or loading.
+	 */
+	public int size()
+	{
+		synchronized (entries)
+		{
+			return entries.size() + loading.size();
+		}
+	}
+
+	/**
+	 * The task that loads a single key.
+	 */
+	private class LoadTask extends ResultTask<V> implements TaskListener
+	{
+		/** The key to load. */
+		private K key;
+		/** Time that this expires, in nanoseconds. */
+		private volatile long expireNanos;
+
+		LoadTask(K key)
+		{
+			this.key = key;
+			this.expireNanos = 0L;
+		}
+
+		@Override
+		protected V compute() throws Throwable
+		{
+			V out = loader.load(key);
+			// set before the result is flagged, so it is never read unset.
+			expireNanos = System.nanoTime() + timeToLiveNanos;
+			return out;
+		}
+
+		/**
+		 * Returns true if this has a result and has expired.
+		 */
+		boolean isExpired()
+		{
+			return timeToLiveNanos > 0 && hasResult() && System.nanoTime() - expireNanos >= 0;
+		}
+
+		@Override
+		public void taskFinished(Task task)
+		{
+			synchronized (entries)
+			{
+				// invalidated while loading.
+				if (loading.get(key) != this)
+					return;
+				loading.remove(key);
+				// don't cache failures. This may evict the eldest loaded value.
+				if (hasResult())
+					entries.put(key, this);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,28 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Black Rook Software
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.sync;
+
+/**
+ * Loads values for a {@link TaskCache}.
+ * @param <K> the key type.
+ * @param <V> the value type.
+ * @author Matthew Tropiano
+ * @since 2.7.0
+ */
+public interface TaskCacheLoader<K, V>
+{
+	/**
+	 * Loads the value for a key.
+	 * This is called once per key at a time, no matter how many threads request it.
+	 * @param key the key to load a value for.
+	 * @return the loaded value.
+	 * @throws Throwable if the value could not be loaded. Failures are not cached.
+	 */
+	public V load(K key) throws Throwable;
+
+}
@@ -0,0 +1,335 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Black Rook Software
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.sync;
+
+import java.util.IdentityHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.blackrook.commons.list.List;
+import com.blackrook.sync.pool.ThreadPool;
+import com.blackrook.sync.pool.WorkPool;
+
+/**
+ * A dependency graph of {@link Task}s.
+ * <p>
+ * Tasks are added to the graph along with the tasks that they depend on, via {@link #add(Task)},
+ * {@link #then(Task, Task)}, {@link #allOf(Task, Task...)}, and {@link #anyOf(Task, Task...)}.
+ * Prerequisites must be added to the graph before the tasks that depend on them, so the graph
+ * can never contain a cycle.
+ * <p>
+ * Once {@link #start()} is called, every task without prerequisites is handed to the graph's {@link Executor},
+ * and every other task is handed to it as soon as its prerequisites are satisfied. No thread ever blocks
+ * waiting on a prerequisite - the task that finishes last schedules its dependents from its completion
+ * listener, so independent branches run in parallel, and the whole graph is scheduled in time linear
+ * to its tasks and dependencies. The executor can be a {@link ThreadPool}'s <code>execute</code> method,
+ * a {@link WorkPool}'s <code>enqueue</code> method, or anything else that runs Runnables.
+ * <p>
+ * If a task's prerequisites fail (throw something or get cancelled) such that they can no longer be
+ * satisfied, the task is cancelled instead of being handed to the executor, which finishes it without running it.
+ * @author Matthew Tropiano
+ * @since 2.7.0
+ */
+public class TaskGraph
+{
+	/** Mode: wait for all prerequisites. */
+	private static final int MODE_ALL = 0;
+	/** Mode: wait for any prerequisite. */
+	private static final int MODE_ANY = 1;
+
+	/** The executor to run tasks with. */
+	private Executor executor;
+	/** Map of task to node. */
+	private IdentityHashMap<Task, Node> nodeMap;
+	/** List of nodes in order of addition. */
+	private List<Node> nodes;
+
+	/** Has this graph been started? */
+	private volatile boolean started;
+	/** Amount of tasks left to finish. */
+	private AtomicInteger remaining;
+	/** Latch released when all tasks finish. */
+	private CountDownLatch doneLatch;
+
+	/**
+	 * Creates a new, empty task graph.
+	 * @param executor the executor to hand tasks to when they are ready to run.
+	 */
+	public TaskGraph(Executor executor)
+	{
+		this.executor = executor;
+		this.nodeMap = new IdentityHashMap<Task, Node>();
+		this.nodes = new List<Node>();
+		this.started = false;
+		this.remaining = new AtomicInteger(0);
+		this.doneLatch = new CountDownLatch(1);
+	}
+
+	/**
+	 * Adds a task with no prerequisites to this graph.
+	 * It will be run as soon as the graph is started.
+	 * @param task the task to add.
+	 * @return the task added.
+	 * @throws IllegalStateException if the graph was already started.
+	 * @throws IllegalArgumentException if the task was already added to this graph.
+	 */
+	public synchronized Task add(Task task)
+	{
+		return addNode(task, MODE_ALL);
+	}
+
+	/**
+	 * Adds a task to this graph that is run after another task finishes successfully.
+	 * Convenience method for <code>allOf(task, prerequisite)</code>.
+	 * @param prerequisite the task that must finish first. Must already be in this graph.
+	 * @param task the task to add.
+	 * @return the task added.
+	 * @throws IllegalStateException if the graph was already started.
+	 * @throws IllegalArgumentException if the task was already added to this graph, or the prerequisite was not.
+	 */
+	public synchronized Task then(Task prerequisite, Task task)
+	{
+		return allOf(task, prerequisite);
+	}
+
+	/**
+	 * Adds a task to this graph that is run after all of its prerequisites finish successfully.
+	 * If any of them fail, the task is cancelled.
+	 * @param task the task to add.
+	 * @param prerequisites the tasks that must finish first. Must already be in this graph.
+	 * @return the task added.
+	 * @throws IllegalStateException if the graph was already started.
+	 * @throws IllegalArgumentException if the task was already added to this graph, or a prerequisite was not.
+	 */
+	public synchronized Task allOf(Task task, Task ... prerequisites)
+	{
+		return addNode(task, MODE_ALL, prerequisites);
+	}
+
+	/**
+	 * Adds a task to this graph that is run after any one of its prerequisites finishes successfully.
+	 * If all of them fail, the task is cancelled.
+	 * @param task the task to add.
+	 * @param prerequisites the tasks that must finish first. Must already be in this graph.
+	 * @return the task added.
+	 * @throws IllegalStateException if the graph was already started.
+	 * @throws IllegalArgumentException if no prerequisites were provided, the task was already added
+	 * 		to this graph, or a prerequisite was not.
+	 */
+	public synchronized Task anyOf(Task task, Task ... prerequisites)
+	{
+		if (prerequisites.length == 0)
+			throw new IllegalArgumentException("At least one prerequisite is required.");
+		return addNode(task, MODE_ANY, prerequisites);
+	}
+
+	/**
+	 * Adds a node to the graph.
+	 */
+	private Task addNode(Task task, int mode, Task ... prerequisites)
+	{
+		if (started)
+			throw new IllegalStateException("Graph was already started.");
+		if (nodeMap.containsKey(task))
+			throw new IllegalArgumentException("Task was already added to this graph.");
+
+		Node[] prereqNodes = new Node[prerequisites.length];
+		for (int i = 0; i < prerequisites.length; i++)
+		{
+			if ((prereqNodes[i] = nodeMap.get(prerequisites[i])) == null)
+				throw new IllegalArgumentException("Prerequisite task was not added to this graph.");
+		}
+
+		Node node = new Node(task, mode, prerequisites.length);
+		for (Node prereq : prereqNodes)
+			prereq.dependents.add(node);
+
+		nodeMap.put(task, node);
+		nodes.add(node);
+		return task;
+	}
+
+	/**
+	 * Starts this graph, handing all tasks without prerequisites to the executor.
+	 * @return itself.
+	 * @throws IllegalStateException if the graph was already started.
+	 */
+	public synchronized TaskGraph start()
+	{
+		if (started)
+			throw new IllegalStateException("Graph was already started.");
+		started = true;
+
+		remaining.set(nodes.size());
+		if (nodes.isEmpty())
+		{
+			doneLatch.countDown();
+			return this;
+		}
+
+		for (Node node : nodes)
+			node.task.addListener(node);
+		for (Node node : nodes)
+			if (node.pending.get() == 0)
+				node.submit(false);
+
+		return this;
+	}
+
+	/**
+	 * Returns the amount of tasks in this graph.
+	 */
+	public synchronized int getTaskCount()
+	{
+		return nodes.size();
+	}
+
+	/**
+	 * Returns true if this graph was started, false if not.
+	 */
+	public boolean isStarted()
+	{
+		return started;
+	}
+
+	/**
+	 * Returns true if every task in this graph has finished, false if not.
+	 */
+	public boolean isDone()
+	{
+		return doneLatch.getCount() == 0;
+	}
+
+	/**
+	 * Makes the current thread wait until all tasks in this graph finish.
+	 * <p>
+	 * NOTE: Do NOT call this without ensuring that the graph was started,
+	 * or this will wait forever!
+	 * </p>
+	 * @see Task#waitFor()
+	 */
+	public void waitFor()
+	{
+		boolean interrupted = false;
+		while (true)
+		{
+			try {
+				doneLatch.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Makes the current thread wait until all tasks in this graph finish,
+	 * or until the timeout elapses.
+	 * @param timeoutMillis the maximum amount of time to wait in milliseconds.
+	 * @return true if all tasks finished, false if the timeout elapsed first.
+	 * @see Task#waitFor(long)
+	 */
+	public boolean waitFor(long timeoutMillis)
+	{
+		boolean interrupted = false;
+		boolean out;
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		while (true)
+		{
+			try {
+				out = doneLatch.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		return out;
+	}
+
+	/**
+	 * A single task in the graph.
+	 */
+	private class Node implements TaskListener
+	{
+		/** The task to run. */
+		private Task task;
+		/** Prerequisite mode. */
+		private int mode;
+		/** Amount of prerequisites not yet finished. */
+		private AtomicInteger pending;
+		/** Set if any prerequisite failed. */
+		private volatile boolean prerequisiteFailed;
+		/** Set once the task is handed to the executor. */
+		private AtomicBoolean submitted;
+		/** Nodes that depend on this one. */
+		private List<Node> dependents;
+
+		Node(Task task, int mode, int prerequisiteCount)
+		{
+			this.task = task;
+			this.mode = mode;
+			this.pending = new AtomicInteger(prerequisiteCount);
+			this.prerequisiteFailed = false;
+			this.submitted = new AtomicBoolean(false);
+			this.dependents = new List<Node>(2);
+		}
+
+		/**
+		 * Hands the task to the executor, once.
+		 */
+		void submit(boolean cancel)
+		{
+			if (!submitted.compareAndSet(false, true))
+				return;
+			if (cancel)
+				task.cancel();
+			else
+				executor.execute(task);
+		}
+
+		/**
+		 * Called when one of this node's prerequisites finishes.
+		 */
+		void prerequisiteFinished(Task prerequisite)
+		{
+			boolean failed = prerequisite.hasThrowable() || prerequisite.isCancelled();
+			if (mode == MODE_ANY)
+			{
+				if (!failed)
+					submit(false);
+				else if (pending.decrementAndGet() == 0)
+					submit(true);
+			}
+			else
+			{
+				if (failed)
+					prerequisiteFailed = true;
+				if (pending.decrementAndGet() == 0)
+					submit(prerequisiteFailed);
+			}
+		}
+
+		@Override
+		public void taskFinished(Task finished)
+		{
+			for (Node dependent : dependents)
+				dependent.prerequisiteFinished(finished);
+			if (remaining.decrementAndGet() == 0)
+				doneLatch.countDown();
+		}
+
+	}
+
+}
@@ -0,0 +1,25 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Black Rook Software
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.sync;
+
+/**
+ * Listener interface for {@link Task} completion.
+ * @author Matthew Tropiano
+ * @since 2.7.0
+ */
+public interface TaskListener
+{
+	/**
+	 * Called when a task finishes, either with an exception, cancellation, or successful finish.
+	 * This is called on the thread that finished the task, or on the thread that added
+	 * the listener, if the task was already finished.
+	 * @param task the task that finished.
+	 */
+	public void taskFinished(Task task);
+	
+}
@@ -0,0 +1,391 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Black Rook Software
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.sync.broadcaster;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@link BroadcastReceiver} that hands messages off to another receiver on its own thread.
+ * <p>
+ * Messages are published into a bounded ring buffer that is allocated once, up front, and a dedicated
+ * consumer thread takes them out in order and passes them to the wrapped receiver. A broadcasting thread
+ * only pays for publishing into a ring slot, so a slow receiver does not slow down its broadcaster,
+ * until its ring is full. What happens then is up to the receiver's {@link OverflowPolicy}, and how the
+ * consumer thread waits for messages is up to its {@link WaitStrategy}.
+ * <p>
+ * Any number of threads can publish to the same receiver at once.
+ * Async receivers should be closed via {@link #close()} when they are no longer needed. Every published
+ * message is either delivered, or counted as dropped, even if it races with a close.
+ * <p>
+ * Exceptions thrown by the wrapped receiver are reported to the listeners of the broadcaster this was added to,
+ * as errors of this receiver, or, if there are none, to the consumer thread's uncaught exception handler.
+ * @param <M> the message type.
+ * @author Matthew Tropiano
+ * @since 2.7.0
+ * @see Broadcaster#addAsyncReceiver(BroadcastReceiver, int, WaitStrategy, OverflowPolicy)
+ */
+public class AsyncBroadcastReceiver<M extends Object> implements BroadcastReceiver<M>
+{
+	/** Park time in nanoseconds for sleeping waits and blocked publishers. */
+	private static final long PARK_NANOS = 50000L;
+	/** Amount of spins before yielding in a blocked publisher. */
+	private static final int SPIN_TRIES = 100;
+	/** Bit set on the tail once the consumer has drained a closed ring, so nothing can be published after. */
+	private static final long SEALED = Long.MIN_VALUE;
+	/** Counter for thread names. */
+	private static final AtomicLong THREAD_ID = new AtomicLong(0L);
+
+	/**
+	 * How the consumer thread waits for new messages.
+	 */
+	public enum WaitStrategy
+	{
+		/** Spins on the ring constantly. Lowest latency, but takes a whole core. */
+		BUSY_SPIN,
+		/** Spins on the ring, yielding the thread in between checks. */
+		YIELDING,
+		/** Sleeps for a short time in between checks. Low CPU use, some added latency. */
+		SLEEPING,
+		/** Sleeps until a publisher wakes it up. Lowest CPU use, and publishers pay for the wake-up. */
+		BLOCKING;
+	}
+
+	/**
+	 * What a publishing thread does when the ring is full.
+	 */
+	public enum OverflowPolicy
+	{
+		/** Waits until there is room in the ring. */
+		BLOCK,
+		/** Drops the message. */
+		DROP,
+		/** Drops the message, closes the receiver, and removes it from its broadcaster. */
+		DISCONNECT;
+	}
+
+	/** The receiver to deliver to. */
+	private BroadcastReceiver<M> receiver;
+	/** Consumer wait strategy. */
+	private WaitStrategy waitStrategy;
+	/** Overflow policy. */
+	private OverflowPolicy overflowPolicy;
+	/** The broadcaster this is attached to, if any. */
+	volatile Broadcaster<M> broadcaster;
+
+	/** Ring index mask. */
+	private int mask;
+	/** Ring slots. */
+	private AtomicReferenceArray<M> slots;
+	/** Per-slot sequence numbers, for publishing and consuming. */
+	private AtomicLongArray sequences;
+	/** Next sequence to claim for publishing, with {@link #SEALED} set once nothing more can be published. */
+	private AtomicLong tail;
+	/** Next sequence to consume. */
+	private volatile long head;
+
+	/** Amount of dropped messages. */
+	private AtomicLong droppedCount;
+	/** Set if closed. */
+	private volatile boolean closed;
+	/** Set while the consumer is parked, in the blocking wait strategy. */
+	private volatile boolean consumerParked;
+	/** The consumer thread. */
+	private Thread consumer;
+
+	/**
+	 * Creates a new async receiver and starts its consumer thread.
+	 * @param receiver the receiver to deliver messages to.
+	 * @param capacity the minimum ring capacity. It is rounded up to the next power of two.
+	 * @param waitStrategy how the consumer thread waits for messages.
+	 * @param overflowPolicy what publishing threads do when the ring is full.
+	 * @throws IllegalArgumentException if the capacity is less than 1.
+	 * @throws NullPointerException if any argument is null.
+	 */
+	public AsyncBroadcastReceiver(BroadcastReceiver<M> receiver, int capacity, WaitStrategy waitStrategy, OverflowPolicy overflowPolicy)
+	{
+		if (receiver == null || waitStrategy == null || overflowPolicy == null)
+			throw new NullPointerException("Receiver, wait strategy, and overflow policy cannot be null.");
+		if (capacity < 1 || capacity > (1 << 30))
+			throw new IllegalArgumentException("Capacity must be between 1 and 2^30.");
+
+		int size = 1;
+		while (size < capacity)
+			size <<= 1;
+
+		this.receiver = receiver;
+		this.waitStrategy = waitStrategy;
+		this.overflowPolicy = overflowPolicy;
+		this.broadcaster = null;
+
+		this.mask = size - 1;
+		this.slots = new AtomicReferenceArray<M>(size);
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++)
+			sequences.set(i, i);
+		this.tail = new AtomicLong(0L);
+		this.head = 0L;
+
+		this.droppedCount = new AtomicLong(0L);
+		this.closed = false;
+		this.consumerParked = false;
+		this.consumer = new ConsumerThread();
+		this.consumer.start();
+	}
+
+	/**
+	 * Publishes a message to this receiver's ring.
+	 * If the ring is full, what happens depends on the overflow policy.
+	 * Messages published after this is closed are dropped.
+	 */
+	@Override
+	public void receiveBroadcast(M message)
+	{
+		int tries = 0;
+		while (!closed)
+		{
+			long seq = tail.get();
+			if (seq < 0L)
+				break;
+			int index = (int)seq & mask;
+			long diff = sequences.get(index) - seq;
+			if (diff == 0L)
+			{
+				if (tail.compareAndSet(seq, seq + 1))
+				{
+					slots.lazySet(index, message);
+					sequences.set(index, seq + 1);
+					if (consumerParked)
+						LockSupport.unpark(consumer);
+					return;
+				}
+			}
+			else if (diff < 0L)
+			{
+				// full.
+				switch (overflowPolicy)
+				{
+					case DROP:
+						droppedCount.incrementAndGet();
+						return;
+					case DISCONNECT:
+						droppedCount.incrementAndGet();
+						close();
+						return;
+					case BLOCK:
+						if (tries < SPIN_TRIES)
+							tries++;
+						else if (tries == SPIN_TRIES)
+						{
+							Thread.yield();
+							tries++;
+						}
+						else
+							LockSupport.parkNanos(PARK_NANOS);
+						break;
+				}
+			}
+		}
+		droppedCount.incrementAndGet();
+	}
+
+	/**
+	 * Returns the receiver that this delivers to.
+	 */
+	public BroadcastReceiver<M> getReceiver()
+	{
+		return receiver;
+	}
+
+	/**
+	 * Returns the consumer wait strategy.
+	 */
+	public WaitStrategy getWaitStrategy()
+	{
+		return waitStrategy;
+	}
+
+	/**
+	 * Returns the overflow policy.
+	 */
+	public OverflowPolicy getOverflowPolicy()
+	{
+		return overflowPolicy;
+	}
+
+	/**
+	 * Returns the capacity of the ring.
+	 */
+	public int getCapacity()
+	{
+		return mask + 1;
+	}
+
+	/**
+	 * Returns the approximate amount of messages published but not yet delivered.
+	 */
+	public int getPendingCount()
+	{
+		return (int)Math.max(0L, (tail.get() & ~SEALED) - head);
+	}
+
+	/**
+	 * Returns the amount of messages dropped, either by the overflow policy or because this was closed.
+	 */
+	public long getDroppedCount()
+	{
+		return droppedCount.get();
+	}
+
+	/**
+	 * Returns true if this was closed.
+	 */
+	public boolean isClosed()
+	{
+		return closed;
+	}
+
+	/**
+	 * Closes this receiver.
+	 * New messages are dropped, messages already published are still delivered, and then the consumer
+	 * thread ends and this is removed from its broadcaster, if any.
+	 * Does nothing if this was already closed.
+	 */
+	public void close()
+	{
+		if (closed)
+			return;
+		closed = true;
+		LockSupport.unpark(consumer);
+	}
+
+	/**
+	 * Waits for the consumer thread to end after {@link #close()}.
+	 * @throws InterruptedException if the current thread is interrupted while waiting.
+	 */
+	public void join() throws InterruptedException
+	{
+		consumer.join();
+	}
+
+	/**
+	 * Takes the next message out of the ring and delivers it.
+	 * @return true if a message was delivered, false if the ring was empty.
+	 */
+	private boolean consumeNext()
+	{
+		long seq = head;
+		int index = (int)seq & mask;
+		if (sequences.get(index) != seq + 1)
+			return false;
+
+		M message = slots.get(index);
+		slots.lazySet(index, null);
+		head = seq + 1;
+		sequences.set(index, seq + mask + 1);
+
+		try {
+			receiver.receiveBroadcast(message);
+		} catch (Throwable t) {
+			Broadcaster<M> b = broadcaster;
+			if (b == null || !b.reportError(this, message, t))
+			{
+				Thread thread = Thread.currentThread();
+				thread.getUncaughtExceptionHandler().uncaughtException(thread, t);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Delivers everything published before the close, and seals the tail.
+	 * A publisher that claimed a slot before the seal is waited for, and one that tries after it
+	 * fails its claim and counts its message as dropped, so no message is lost in between.
+	 */
+	private void drain()
+	{
+		while (true)
+		{
+			while (consumeNext()) ;
+			long seq = tail.get();
+			if (seq == head && tail.compareAndSet(seq, seq | SEALED))
+				return;
+			// claimed, but not written yet.
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Returns true if a message is ready to consume.
+	 */
+	private boolean hasNext()
+	{
+		long seq = head;
+		return sequences.get((int)seq & mask) == seq + 1;
+	}
+
+	/**
+	 * Waits for a message according to the wait strategy.
+	 */
+	private void waitForNext()
+	{
+		switch (waitStrategy)
+		{
+			case BUSY_SPIN:
+				break;
+			case YIELDING:
+				Thread.yield();
+				break;
+			case SLEEPING:
+				LockSupport.parkNanos(PARK_NANOS);
+				break;
+			case BLOCKING:
+				consumerParked = true;
+				// check again after flagging, so a publish in between is never missed.
+				if (!hasNext() && !closed)
+					LockSupport.park(this);
+				consumerParked = false;
+				break;
+		}
+	}
+
+	/**
+	 * The consumer thread.
+	 */
+	private class ConsumerThread extends Thread
+	{
+		ConsumerThread()
+		{
+			super("AsyncBroadcastReceiver-" + THREAD_ID.getAndIncrement());
+			setDaemon(true);
+		}
+
+		@Override
+		public void run()
+		{
+			while (true)
+			{
+				if (consumeNext())
+					continue;
+				if (closed)
+				{
+					drain();
+					break;
+				}
+				waitForNext();
+			}
+
+			Broadcaster<M> b = broadcaster;
+			if (b != null)
+				b.removeReceiver(AsyncBroadcastReceiver.this);
+		}
+	}
+
+}
@@ -0,0 +1,30 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Black Rook Software
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.sync.broadcaster;
+
+import com.blackrook.commons.list.List;
+
+/**
+ * A {@link BroadcastReceiver} that can receive a batch of messages in one call.
+ * Receivers that do not implement this receive batches one message at a time.
+ * @param <M> the message type.
+ * @author Matthew Tropiano
+ * @since 2.7.0
+ * @see Broadcaster#broadcastAll(Object...)
+ */
+public interface BatchBroadcastReceiver<M extends Object> extends BroadcastReceiver<M>
+{
+
+	/**
+	 * Called on an incoming batch of messages from an attached broadcaster.
+	 * @param messages the incoming messages, in order. The same list is passed to every receiver
+	 * 		of the batch, so it must not be changed.
+	 */
+	public void receiveBroadcasts(List<M> messages);
+	
+}
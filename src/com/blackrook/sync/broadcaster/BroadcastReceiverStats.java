@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Black Rook Software
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.sync.broadcaster;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Delivery statistics for a single receiver on a {@link Broadcaster}.
+ * <p>
+ * Timing figures only cover the deliveries that were sampled, according to the
+ * broadcaster's timing settings. Error counts cover every delivery.
+ * <p>
+ * Timed deliveries are also counted in a coarse histogram of power-of-two nanosecond buckets,
+ * so that percentiles can be estimated to within a factor of two (see {@link #getPercentileNanos(double)}).
+ * All getters may be called from any thread.
+ * @author Matthew Tropiano
+ * @since 2.7.0
+ * @see Broadcaster#getReceiverStats(BroadcastReceiver)
+ */
+public final class BroadcastReceiverStats
+{
+	/** Amount of histogram buckets. */
+	public static final int BUCKET_COUNT = 40;
+
+	/** Amount of timed deliveries. */
+	private AtomicLong sampleCount;
+	/** Total time of timed deliveries in nanoseconds. */
+	private AtomicLong totalNanos;
+	/** Longest timed delivery in nanoseconds. */
+	private AtomicLong maxNanos;
+	/** Amount of timed deliveries at or over the slow threshold. */
+	private AtomicLong slowCount;
+	/** Amount of deliveries that threw an exception. */
+	private AtomicLong errorCount;
+	/** Amount of timed deliveries per bucket. */
+	private AtomicLongArray histogram;
+
+	BroadcastReceiverStats()
+	{
+		this.sampleCount = new AtomicLong(0L);
+		this.totalNanos = new AtomicLong(0L);
+		this.maxNanos = new AtomicLong(0L);
+		this.slowCount = new AtomicLong(0L);
+		this.errorCount = new AtomicLong(0L);
+		this.histogram = new AtomicLongArray(BUCKET_COUNT);
+	}
+
+	/**
+	 * Adds a timed delivery.
+	 */
+	void addSample(long nanos, boolean slow)
+	{
+		sampleCount.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+		long max;
+		while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) ;
+		if (slow)
+			slowCount.incrementAndGet();
+		histogram.incrementAndGet(getBucket(nanos));
+	}
+
+	/**
+	 * Returns the histogram bucket for a delivery time.
+	 * Bucket 0 holds times under 1 nanosecond, bucket <code>n</code> holds times from
+	 * <code>2^(n-1)</code> up to (but not including) <code>2^n</code> nanoseconds,
+	 * and the last bucket also holds every longer time.
+	 * @param nanos the delivery time in nanoseconds.
+	 * @return the bucket index.
+	 */
+	public static int getBucket(long nanos)
+	{
+		if (nanos <= 0L)
+			return 0;
+		return Math.min(64 - Long.numberOfLeadingZeros(nanos), BUCKET_COUNT - 1);
+	}
+
+	/**
+	 * Returns the upper limit of a histogram bucket, in nanoseconds.
+	 * Times in the bucket are less than this, except in the last bucket, which has no limit.
+	 * @param bucket the bucket index.
+	 * @return the limit, or {@link Long#MAX_VALUE} for the last bucket.
+	 * @throws IndexOutOfBoundsException if the bucket is less than 0 or not less than {@link #BUCKET_COUNT}.
+	 */
+	public static long getBucketLimit(int bucket)
+	{
+		if (bucket < 0 || bucket >= BUCKET_COUNT)
+			throw new IndexOutOfBoundsException("Bad bucket: " + bucket);
+		return bucket < BUCKET_COUNT - 1 ? 1L << bucket : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Adds a failed delivery.
+	 */
+	void addError()
+	{
+		errorCount.incrementAndGet();
+	}
+
+	/**
+	 * Returns the amount of timed deliveries.
+	 */
+	public long getSampleCount()
+	{
+		return sampleCount.get();
+	}
+
+	/**
+	 * Returns the total time of all timed deliveries in nanoseconds.
+	 */
+	public long getTotalNanos()
+	{
+		return totalNanos.get();
+	}
+
+	/**
+	 * Returns the mean time of a timed delivery in nanoseconds, or 0 if there are none.
+	 */
+	public long getMeanNanos()
+	{
+		long count = sampleCount.get();
+		return count > 0L ? totalNanos.get() / count : 0L;
+	}
+
+	/**
+	 * Returns the longest timed delivery in nanoseconds.
+	 */
+	public long getMaxNanos()
+	{
+		return maxNanos.get();
+	}
+
+	/**
+	 * Returns a copy of the histogram of timed deliveries.
+	 * @return an array of {@link #BUCKET_COUNT} counts, indexed by bucket.
+	 * @see #getBucket(long)
+	 */
+	public long[] getHistogram()
+	{
+		long[] out = new long[BUCKET_COUNT];
+		for (int i = 0; i < BUCKET_COUNT; i++)
+			out[i] = histogram.get(i);
+		return out;
+	}
+
+	/**
+	 * Estimates a percentile of the timed deliveries from the histogram.
+	 * The result is the upper limit of the bucket that the percentile falls in,
+	 * but never more than the longest timed delivery, so it is at most about twice the exact value.
+	 * @param percentile the percentile, from 0 to 100.
+	 * @return the estimated time in nanoseconds, or 0 if there are no timed deliveries.
+	 * @throws IllegalArgumentException if the percentile is not from 0 to 100.
+	 */
+	public long getPercentileNanos(double percentile)
+	{
+		if (!(percentile >= 0.0 && percentile <= 100.0))
+			throw new IllegalArgumentException("Percentile must be from 0 to 100.");
+
+		long[] counts = getHistogram();
+		long total = 0L;
+		for (int i = 0; i < counts.length; i++)
+			total += counts[i];
+		if (total == 0L)
+			return 0L;
+
+		long rank = Math.max(1L, (long)Math.ceil(total * percentile / 100.0));
+		long seen = 0L;
+		int bucket = 0;
+		for (; bucket < counts.length - 1; bucket++)
+			if ((seen += counts[bucket]) >= rank)
+				break;
+		return Math.min(getBucketLimit(bucket), maxNanos.get());
+	}
+
+	/**
+	 * Returns the amount of timed deliveries that took at least the slow threshold.
+	 */
+	public long getSlowCount()
+	{
+		return slowCount.get();
+	}
+
+	/**
+	 * Returns the amount of deliveries that threw an exception.
+	 */
+	public long getErrorCount()
+	{
+		return errorCount.get();
+	}
+
+}
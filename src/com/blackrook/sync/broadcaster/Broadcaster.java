@@ -7,11 +7,21 @@
  ******************************************************************************/
 package com.blackrook.sync.broadcaster;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
 
 import com.blackrook.commons.hash.Hash;
+import com.blackrook.commons.linkedlist.Queue;
+import com.blackrook.commons.list.List;
+import com.blackrook.sync.Task;
 import com.blackrook.sync.pool.WorkPool;
 
 /**
@@ -22,6 +32,22 @@ import com.blackrook.sync.pool.WorkPool;
  * The broadcast happens in the same thread that calls {@link #broadcast(Object)}, and does not offload
  * the message object in a separate thread. Best combined with a {@link WorkPool} for broadcasting
  * lots of messages asynchronously, with each spawned job doing the broadcast.
+ * <p>
+ * A Broadcaster can also be created in <i>copy-on-write</i> mode, where the receivers are published 
+ * as an immutable array that is replaced on every add or remove. Broadcasts in this mode take no locks
+ * and allocate nothing, so they never contend with each other or wait for adds and removes, at the
+ * cost of copying the receivers on every change. This suits broadcasters whose receivers rarely change.
+ * A broadcast in progress during a change still delivers to the receivers from before it.
+ * <p>
+ * Receivers added via {@link #addAsyncReceiver(BroadcastReceiver, int, AsyncBroadcastReceiver.WaitStrategy, AsyncBroadcastReceiver.OverflowPolicy)}
+ * receive messages on their own threads, so that slow receivers do not hold up broadcasts.
+ * For broadcasters with very many receivers, {@link #broadcastParallel(Object, Executor, int)} splits
+ * the receivers into chunks that are delivered to concurrently.
+ * <p>
+ * A receiver that throws an exception does not stop the others from receiving the message. The exception
+ * is passed to this broadcaster's {@link BroadcasterListener}s once the broadcast is done, or, if there are
+ * no listeners, thrown from the broadcast once every receiver has the message. Deliveries can also be timed
+ * (see {@link #setTiming(int, long)}), for per-receiver statistics and to report slow receivers.
  * @param <M> the message type to broadcast to attached listeners.
  * @author Matthew Tropiano
  */
@@ -32,17 +58,56 @@ public class Broadcaster<M extends Object>
 	
 	/** Set of user broadcast hooks. */
 	private Hash<BroadcastReceiver<M>> receivers;
+	/** Is this in copy-on-write mode? */
+	private boolean copyOnWrite;
+	/** Receiver snapshot in copy-on-write mode. */
+	private volatile BroadcastReceiver<M>[] receiverSnapshot;
+	
+	/** Broadcaster listeners. Replaced on every change. */
+	private volatile BroadcasterListener<M>[] listeners;
+	/** Mutex for listener changes. */
+	private Object LISTENER_MUTEX = new Object();
+	/** One in this many deliveries is timed, or 0 for no timing. */
+	private volatile int timingSampleRate;
+	/** Per-thread countdown to the next timed delivery. */
+	private ThreadLocal<Countdown> timingCountdown;
+	/** Slow delivery threshold in nanoseconds, or 0 for none. */
+	private volatile long slowThresholdNanos;
+	/** Per-receiver statistics. */
+	private ConcurrentHashMap<BroadcastReceiver<M>, BroadcastReceiverStats> receiverStats;
 	
 	/** Read lock for message broadcast. */
 	private ReadLock readLock;
 	/** Write lock for other stuff. */
 	private WriteLock writeLock;
 
+	/**
+	 * Creates a new Broadcaster that locks its receivers during broadcasts.
+	 * @param name the broadcaster name.
+	 */
 	public Broadcaster(String name)
+	{
+		this(name, false);
+	}
+	
+	/**
+	 * Creates a new Broadcaster.
+	 * @param name the broadcaster name.
+	 * @param copyOnWrite if true, this is in copy-on-write mode, and broadcasts take no locks.
+	 * @since 2.7.0
+	 */
+	public Broadcaster(String name, boolean copyOnWrite)
 	{
 		this.name = name;
 		
 		receivers = new Hash<BroadcastReceiver<M>>(20);
+		this.copyOnWrite = copyOnWrite;
+		this.receiverSnapshot = createArray(0);
+		this.listeners = createListenerArray(0);
+		this.timingSampleRate = 0;
+		this.timingCountdown = new ThreadLocal<Countdown>();
+		this.slowThresholdNanos = 0L;
+		this.receiverStats = new ConcurrentHashMap<BroadcastReceiver<M>, BroadcastReceiverStats>(16, 0.75f, 4);
 		
 		ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock(true);
 		readLock = rwLock.readLock();
@@ -57,21 +122,410 @@ public class Broadcaster<M extends Object>
 		return name;
 	}
 	
+	/**
+	 * Returns true if this is in copy-on-write mode.
+	 * @since 2.7.0
+	 */
+	public boolean isCopyOnWrite()
+	{
+		return copyOnWrite;
+	}
+	
 	/**
 	 * Sends a message to all receivers.
 	 * @param message the message to send.
 	 */
 	public void broadcast(M message)
 	{
-		// secure read lock to avoid write.
-		readLock.lock();
+		Queue<Event<M>> events = null;
+		Countdown countdown = getCountdown();
+		if (copyOnWrite)
+		{
+			BroadcastReceiver<M>[] snapshot = receiverSnapshot;
+			for (int i = 0; i < snapshot.length; i++)
+				events = deliver(snapshot[i], message, events, countdown);
+		}
+		else
+		{
+			// secure read lock to avoid write.
+			readLock.lock();
+			try {
+				for (BroadcastReceiver<M> uh : receivers)
+					events = deliver(uh, message, events, countdown);
+			} finally {
+				// release read lock.
+				readLock.unlock();
+			}
+		}
+		
+		if (events != null)
+			throwUnhandled(fireEvents(events));
+	}
+	
+	/**
+	 * Sends a batch of messages to all receivers, in order.
+	 * The receivers are locked (or snapshotted) once for the whole batch, and each receiver gets the whole
+	 * batch before the next one does. Receivers that implement {@link BatchBroadcastReceiver} get it in one call.
+	 * A receiver that throws an exception on one message still receives the rest of the batch, 
+	 * unless it is a {@link BatchBroadcastReceiver}.
+	 * @param messages the messages to send.
+	 * @since 2.7.0
+	 */
+	@SafeVarargs
+	@SuppressWarnings("varargs")
+	public final void broadcastAll(M ... messages)
+	{
+		if (messages.length == 0)
+			return;
+		
+		List<M> batch = new List<M>(messages.length);
+		for (int i = 0; i < messages.length; i++)
+			batch.add(messages[i]);
+		Queue<Event<M>> events = null;
+		Countdown countdown = getCountdown();
+		if (copyOnWrite)
+		{
+			BroadcastReceiver<M>[] snapshot = receiverSnapshot;
+			for (int i = 0; i < snapshot.length; i++)
+				events = deliverAll(snapshot[i], batch, events, countdown);
+		}
+		else
+		{
+			readLock.lock();
+			try {
+				for (BroadcastReceiver<M> uh : receivers)
+					events = deliverAll(uh, batch, events, countdown);
+			} finally {
+				readLock.unlock();
+			}
+		}
+		
+		if (events != null)
+			throwUnhandled(fireEvents(events));
+	}
+	
+	/**
+	 * Delivers a message to one receiver, isolating and timing it.
+	 * @return the events so far, created if there were none and something happened.
+	 */
+	private Queue<Event<M>> deliver(BroadcastReceiver<M> receiver, M message, Queue<Event<M>> events, Countdown countdown)
+	{
+		boolean timed = isTimed(countdown);
+		long start = timed ? System.nanoTime() : 0L;
 		try {
-			for (BroadcastReceiver<M> uh : receivers)
-				uh.receiveBroadcast(message);
-		} finally {
-			// release read lock.
-			readLock.unlock();
+			receiver.receiveBroadcast(message);
+		} catch (Throwable t) {
+			events = failed(events, receiver, message, t);
+		}
+		if (timed)
+			events = timed(events, receiver, System.nanoTime() - start);
+		return events;
+	}
+	
+	/**
+	 * Delivers a batch of messages to one receiver, isolating and timing it.
+	 * @return the events so far, created if there were none and something happened.
+	 */
+	private Queue<Event<M>> deliverAll(BroadcastReceiver<M> receiver, List<M> messages, Queue<Event<M>> events, Countdown countdown)
+	{
+		boolean timed = isTimed(countdown);
+		long start = timed ? System.nanoTime() : 0L;
+		if (receiver instanceof BatchBroadcastReceiver)
+		{
+			try {
+				((BatchBroadcastReceiver<M>)receiver).receiveBroadcasts(messages);
+			} catch (Throwable t) {
+				events = failed(events, receiver, null, t);
+			}
+		}
+		else for (int i = 0; i < messages.size(); i++)
+		{
+			try {
+				receiver.receiveBroadcast(messages.get(i));
+			} catch (Throwable t) {
+				events = failed(events, receiver, messages.get(i), t);
+			}
 		}
+		if (timed)
+			events = timed(events, receiver, System.nanoTime() - start);
+		return events;
+	}
+	
+	/**
+	 * Gets the current thread's timing countdown, if deliveries are sampled.
+	 * Called once per broadcast, so that deliveries only pay for a decrement.
+	 */
+	private Countdown getCountdown()
+	{
+		if (timingSampleRate < 2)
+			return null;
+		Countdown out = timingCountdown.get();
+		if (out == null)
+		{
+			out = new Countdown();
+			timingCountdown.set(out);
+		}
+		return out;
+	}
+	
+	/**
+	 * Decides if the next delivery is timed.
+	 */
+	private boolean isTimed(Countdown countdown)
+	{
+		int rate = timingSampleRate;
+		if (rate == 1)
+			return true;
+		if (rate == 0 || countdown == null || --countdown.remaining > 0)
+			return false;
+		// a random gap averaging the sample rate, so receivers in a fixed order don't line up with it.
+		countdown.remaining = 1 + ThreadLocalRandom.current().nextInt(2 * rate - 1);
+		return true;
+	}
+	
+	/**
+	 * Records a failed delivery.
+	 */
+	private Queue<Event<M>> failed(Queue<Event<M>> events, BroadcastReceiver<M> receiver, M message, Throwable t)
+	{
+		getStats(receiver).addError();
+		if (events == null)
+			events = new Queue<Event<M>>();
+		events.add(new Event<M>(receiver, message, t, 0L));
+		return events;
+	}
+	
+	/**
+	 * Records a timed delivery.
+	 */
+	private Queue<Event<M>> timed(Queue<Event<M>> events, BroadcastReceiver<M> receiver, long nanos)
+	{
+		long threshold = slowThresholdNanos;
+		boolean slow = threshold > 0L && nanos >= threshold;
+		getStats(receiver).addSample(nanos, slow);
+		if (slow)
+		{
+			if (events == null)
+				events = new Queue<Event<M>>();
+			events.add(new Event<M>(receiver, null, null, nanos));
+		}
+		return events;
+	}
+	
+	/**
+	 * Gets or creates the statistics for a receiver.
+	 */
+	private BroadcastReceiverStats getStats(BroadcastReceiver<M> receiver)
+	{
+		BroadcastReceiverStats out = receiverStats.get(receiver);
+		if (out == null)
+		{
+			BroadcastReceiverStats created = new BroadcastReceiverStats();
+			out = receiverStats.putIfAbsent(receiver, created);
+			if (out == null)
+				out = created;
+		}
+		return out;
+	}
+	
+	/**
+	 * Passes delivery events to the listeners.
+	 * Must not be called with any locks held.
+	 * @return the first error, if there were errors and no listeners to handle them, or null.
+	 */
+	private Throwable fireEvents(Queue<Event<M>> events)
+	{
+		BroadcasterListener<M>[] ls = listeners;
+		Throwable unhandled = null;
+		for (Event<M> event : events)
+		{
+			if (event.throwable != null && ls.length == 0 && unhandled == null)
+				unhandled = event.throwable;
+			for (int i = 0; i < ls.length; i++)
+			{
+				try {
+					if (event.throwable != null)
+						ls[i].receiverError(this, event.receiver, event.message, event.throwable);
+					else
+						ls[i].receiverSlow(this, event.receiver, event.nanos);
+				} catch (Throwable t) {
+					// Listener problems are not the broadcast's problems.
+				}
+			}
+		}
+		return unhandled;
+	}
+	
+	/**
+	 * Reports a receiver error that happened outside of a broadcast, such as on an async receiver's thread,
+	 * to the listeners.
+	 * @return true if there were listeners to report it to, false if not.
+	 */
+	boolean reportError(BroadcastReceiver<M> receiver, M message, Throwable t)
+	{
+		return fireEvents(failed(null, receiver, message, t)) == null;
+	}
+	
+	/**
+	 * Throws an unhandled receiver error, if any, as an unchecked exception.
+	 */
+	private static void throwUnhandled(Throwable t)
+	{
+		if (t == null)
+			return;
+		if (t instanceof RuntimeException)
+			throw (RuntimeException)t;
+		if (t instanceof Error)
+			throw (Error)t;
+		throw new CompletionException(t);
+	}
+	
+	/**
+	 * Turns on timing of deliveries to receivers.
+	 * <p>
+	 * On average, one in every <code>sampleRate</code> deliveries is timed, and added to the
+	 * receiver's {@link BroadcastReceiverStats}. If a timed delivery takes at least the slow threshold,
+	 * the listeners are notified via {@link BroadcasterListener#receiverSlow(Broadcaster, BroadcastReceiver, long)}.
+	 * Each broadcasting thread counts down to its next timed delivery, so an untimed delivery only costs
+	 * a decrement, and the gap to the next one is picked at random when a delivery is timed.
+	 * @param sampleRate time one in this many deliveries. 1 times every delivery, 0 turns timing off.
+	 * @param slowThresholdNanos the slow delivery threshold in nanoseconds, or 0 for none.
+	 * @throws IllegalArgumentException if either value is less than 0.
+	 * @since 2.7.0
+	 */
+	public void setTiming(int sampleRate, long slowThresholdNanos)
+	{
+		if (sampleRate < 0 || slowThresholdNanos < 0L)
+			throw new IllegalArgumentException("Sample rate and threshold must be 0 or greater.");
+		this.slowThresholdNanos = slowThresholdNanos;
+		this.timingSampleRate = sampleRate;
+	}
+	
+	/**
+	 * Turns off timing of deliveries to receivers.
+	 * Receiver statistics gathered so far are kept.
+	 * @since 2.7.0
+	 */
+	public void clearTiming()
+	{
+		setTiming(0, 0L);
+	}
+	
+	/**
+	 * Returns the timing sample rate, or 0 if deliveries are not timed.
+	 * @since 2.7.0
+	 */
+	public int getTimingSampleRate()
+	{
+		return timingSampleRate;
+	}
+	
+	/**
+	 * Returns the slow delivery threshold in nanoseconds, or 0 for none.
+	 * @since 2.7.0
+	 */
+	public long getSlowThreshold()
+	{
+		return slowThresholdNanos;
+	}
+	
+	/**
+	 * Returns the delivery statistics for a receiver.
+	 * @param receiver the receiver.
+	 * @return the statistics, or null if nothing was recorded for it yet.
+	 * @since 2.7.0
+	 */
+	public BroadcastReceiverStats getReceiverStats(BroadcastReceiver<M> receiver)
+	{
+		return receiverStats.get(receiver);
+	}
+	
+	/**
+	 * Adds a listener to this broadcaster.
+	 * @param listener the listener to add.
+	 * @since 2.7.0
+	 */
+	public void addListener(BroadcasterListener<M> listener)
+	{
+		synchronized (LISTENER_MUTEX)
+		{
+			BroadcasterListener<M>[] ls = listeners;
+			BroadcasterListener<M>[] out = createListenerArray(ls.length + 1);
+			System.arraycopy(ls, 0, out, 0, ls.length);
+			out[ls.length] = listener;
+			listeners = out;
+		}
+	}
+	
+	/**
+	 * Removes a listener from this broadcaster.
+	 * @param listener the listener to remove.
+	 * @return true if removed, false if not.
+	 * @since 2.7.0
+	 */
+	public boolean removeListener(BroadcasterListener<M> listener)
+	{
+		synchronized (LISTENER_MUTEX)
+		{
+			BroadcasterListener<M>[] ls = listeners;
+			for (int i = 0; i < ls.length; i++)
+			{
+				if (ls[i] == listener)
+				{
+					BroadcasterListener<M>[] out = createListenerArray(ls.length - 1);
+					System.arraycopy(ls, 0, out, 0, i);
+					System.arraycopy(ls, i + 1, out, i, ls.length - i - 1);
+					listeners = out;
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Sends a message to all receivers in parallel, by splitting the receivers into chunks
+	 * and delivering to each chunk on an executor.
+	 * <p>
+	 * The receivers are the ones attached at the time of the call. If a receiver throws an exception,
+	 * the rest of the receivers still get the message, and if there are no listeners to handle it, the first
+	 * exception thrown becomes the returned task's {@link Task#getThrowable() throwable}. If the executor rejects a chunk, 
+	 * it is delivered to on the current thread instead.
+	 * <p>
+	 * Chunks are not bound to executor jobs: each job takes the next chunk that has not started yet until there are
+	 * none left, so the broadcast does not wait on jobs that are still queued behind other work.
+	 * @param message the message to send.
+	 * @param executor the executor to deliver on.
+	 * @param chunkSize the maximum amount of receivers per chunk. Must be greater than 0.
+	 * @return a task that finishes once every receiver has received the message. Cancelling it skips the chunks 
+	 * 		that have not started yet, but the task is not done until the chunks that have started are finished,
+	 * 		so once it is done, no receiver is still getting the message.
+	 * @throws IllegalArgumentException if chunkSize is less than 1.
+	 * @since 2.7.0
+	 */
+	public Task broadcastParallel(M message, Executor executor, int chunkSize)
+	{
+		if (chunkSize < 1)
+			throw new IllegalArgumentException("Chunk size must be greater than 0.");
+		
+		ParallelBroadcast broadcast = new ParallelBroadcast(message, getReceiverArray(), chunkSize);
+		int chunks = broadcast.chunks;
+		if (chunks == 0)
+		{
+			broadcast.run();
+			return broadcast;
+		}
+		
+		for (int i = 0; i < chunks; i++)
+		{
+			Chunk chunk = new Chunk(broadcast);
+			try {
+				executor.execute(chunk);
+			} catch (RejectedExecutionException e) {
+				chunk.run();
+			}
+		}
+		return broadcast;
 	}
 	
 	/**
@@ -90,6 +544,8 @@ public class Broadcaster<M extends Object>
 			if (receivers.contains(receiver))
 				return false;
 			receivers.put(receiver);
+			if (copyOnWrite)
+				refreshSnapshot();
 		} finally {
 			writeLock.unlock();
 		}
@@ -98,8 +554,31 @@ public class Broadcaster<M extends Object>
 	}
 
 
+	/**
+	 * Adds a receiver to this broadcaster that receives messages on its own thread, 
+	 * via a bounded ring buffer.
+	 * The returned receiver is closed when it is removed from this broadcaster.
+	 * @param receiver the receiver to deliver messages to.
+	 * @param capacity the minimum ring capacity. It is rounded up to the next power of two.
+	 * @param waitStrategy how the receiver's thread waits for messages.
+	 * @param overflowPolicy what broadcasting threads do when the receiver's ring is full.
+	 * @return the new async receiver that was added.
+	 * @since 2.7.0
+	 * @see AsyncBroadcastReceiver
+	 */
+	public AsyncBroadcastReceiver<M> addAsyncReceiver(BroadcastReceiver<M> receiver, int capacity, AsyncBroadcastReceiver.WaitStrategy waitStrategy, AsyncBroadcastReceiver.OverflowPolicy overflowPolicy)
+	{
+		AsyncBroadcastReceiver<M> out = new AsyncBroadcastReceiver<M>(receiver, capacity, waitStrategy, overflowPolicy);
+		out.broadcaster = this;
+		addReceiver(out);
+		return out;
+	}
+
 	/**
 	 * Removes a user from this broadcaster.
+	 * If the receiver is an {@link AsyncBroadcastReceiver} added by 
+	 * {@link #addAsyncReceiver(BroadcastReceiver, int, AsyncBroadcastReceiver.WaitStrategy, AsyncBroadcastReceiver.OverflowPolicy)}, 
+	 * it is also closed.
 	 * @return true if removed, false if not.
 	 */
 	public boolean removeReceiver(BroadcastReceiver<M> receiver)
@@ -112,13 +591,75 @@ public class Broadcaster<M extends Object>
 			if (!receivers.contains(receiver))
 				return false;
 			receivers.remove(receiver);
+			if (copyOnWrite)
+				refreshSnapshot();
 		} finally {
 			writeLock.unlock();
 		}
+		receiverStats.remove(receiver);
+		
+		if (receiver instanceof AsyncBroadcastReceiver)
+		{
+			AsyncBroadcastReceiver<M> async = (AsyncBroadcastReceiver<M>)receiver;
+			if (async.broadcaster == this)
+				async.close();
+		}
 		
 		return true;
 	}
 	
+	/**
+	 * Returns an array of the current receivers.
+	 * In copy-on-write mode, this is the snapshot itself, and must not be changed.
+	 */
+	private BroadcastReceiver<M>[] getReceiverArray()
+	{
+		if (copyOnWrite)
+			return receiverSnapshot;
+		
+		readLock.lock();
+		try {
+			BroadcastReceiver<M>[] out = createArray(receivers.size());
+			int i = 0;
+			for (BroadcastReceiver<M> receiver : receivers)
+				out[i++] = receiver;
+			return out;
+		} finally {
+			readLock.unlock();
+		}
+	}
+	
+	/**
+	 * Rebuilds the receiver snapshot.
+	 * Must be called with the write lock held.
+	 */
+	private void refreshSnapshot()
+	{
+		BroadcastReceiver<M>[] out = createArray(receivers.size());
+		int i = 0;
+		for (BroadcastReceiver<M> receiver : receivers)
+			out[i++] = receiver;
+		receiverSnapshot = out;
+	}
+	
+	/**
+	 * Creates a new receiver array.
+	 */
+	@SuppressWarnings("unchecked")
+	private BroadcastReceiver<M>[] createArray(int length)
+	{
+		return (BroadcastReceiver<M>[])new BroadcastReceiver<?>[length];
+	}
+	
+	/**
+	 * Creates a new listener array.
+	 */
+	@SuppressWarnings("unchecked")
+	private BroadcasterListener<M>[] createListenerArray(int length)
+	{
+		return (BroadcasterListener<M>[])new BroadcasterListener<?>[length];
+	}
+	
 	/**
 	 * Returns the amount of attached users.
 	 */
@@ -135,4 +676,165 @@ public class Broadcaster<M extends Object>
 		return getReceverCount() == 0;
 	}
 	
+	/**
+	 * The completion handle of a parallel broadcast.
+	 * It is run by the first chunk job to start, which delivers chunks until there are none left,
+	 * and then waits for the chunks that other jobs are still delivering.
+	 */
+	private class ParallelBroadcast extends Task
+	{
+		/** The message. */
+		private M message;
+		/** The receivers. */
+		private BroadcastReceiver<M>[] snapshot;
+		/** The maximum amount of receivers per chunk. */
+		private int chunkSize;
+		/** Amount of chunks. */
+		private int chunks;
+		/** Index of the next chunk to deliver. */
+		private AtomicInteger next;
+		/** Amount of jobs other than the task's that are delivering chunks. */
+		private int helping;
+		/** The first exception thrown by a receiver. */
+		private AtomicReference<Throwable> error;
+		
+		ParallelBroadcast(M message, BroadcastReceiver<M>[] snapshot, int chunkSize)
+		{
+			this.message = message;
+			this.snapshot = snapshot;
+			this.chunkSize = chunkSize;
+			this.chunks = snapshot.length > 0 ? (snapshot.length - 1) / chunkSize + 1 : 0;
+			this.next = new AtomicInteger(0);
+			this.helping = 0;
+			this.error = new AtomicReference<Throwable>(null);
+		}
+		
+		@Override
+		protected void doTask() throws Throwable
+		{
+			deliverChunks();
+			
+			// wait for the other jobs without giving up on an interrupt, since they can't be stopped.
+			boolean interrupted = false;
+			synchronized (this)
+			{
+				while (helping > 0)
+				{
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+
+			Throwable t = error.get();
+			if (t != null)
+				throw t;
+		}
+		
+		/**
+		 * Delivers to another job's chunks, if the task is running.
+		 */
+		void help()
+		{
+			synchronized (this)
+			{
+				helping++;
+			}
+			try {
+				// a helper that comes in after the task stops waiting finds no chunks left or the task cancelled.
+				if (!isDone())
+					deliverChunks();
+			} finally {
+				synchronized (this)
+				{
+					if (--helping == 0)
+						notifyAll();
+				}
+			}
+		}
+		
+		/**
+		 * Delivers to chunks that have not started yet, until there are none left or the task is cancelled.
+		 */
+		private void deliverChunks()
+		{
+			Countdown countdown = getCountdown();
+			int chunk;
+			while (!isCancelled() && (chunk = next.getAndIncrement()) < chunks)
+			{
+				int start = chunk * chunkSize;
+				int end = (int)Math.min((long)start + chunkSize, snapshot.length);
+				Queue<Event<M>> events = null;
+				for (int i = start; i < end; i++)
+					events = deliver(snapshot[i], message, events, countdown);
+				if (events != null)
+				{
+					Throwable t = fireEvents(events);
+					if (t != null)
+						error.compareAndSet(null, t);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * An executor job for a parallel broadcast.
+	 */
+	private class Chunk implements Runnable
+	{
+		/** The broadcast. */
+		private ParallelBroadcast broadcast;
+		
+		Chunk(ParallelBroadcast broadcast)
+		{
+			this.broadcast = broadcast;
+		}
+		
+		@Override
+		public void run()
+		{
+			// the first job to start runs the task, and the rest help it.
+			if (broadcast.isReady())
+				broadcast.run();
+			if (!broadcast.isDone())
+				broadcast.help();
+		}
+	}
+	
+	/**
+	 * A thread's countdown to its next timed delivery.
+	 */
+	private static class Countdown
+	{
+		/** Deliveries left until the next timed one. */
+		private int remaining = 1;
+	}
+	
+	/**
+	 * A delivery error or slow delivery.
+	 */
+	private static class Event<M>
+	{
+		/** The receiver. */
+		private BroadcastReceiver<M> receiver;
+		/** The message, if an error. */
+		private M message;
+		/** The error, or null if a slow delivery. */
+		private Throwable throwable;
+		/** The delivery time, if a slow delivery. */
+		private long nanos;
+		
+		Event(BroadcastReceiver<M> receiver, M message, Throwable throwable, long nanos)
+		{
+			this.receiver = receiver;
+			this.message = message;
+			this.throwable = throwable;
+			this.nanos = nanos;
+		}
+	}
+	
 }
@@ -0,0 +1,28 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Black Rook Software
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.sync.broadcaster;
+
+/**
+ * Adapter class for the BroadcasterListener.
+ * @param <M> the message type.
+ * @author Matthew Tropiano
+ * @since 2.7.0
+ */
+public class BroadcasterAdapter<M extends Object> implements BroadcasterListener<M>
+{
+	@Override
+	public void receiverError(Broadcaster<M> broadcaster, BroadcastReceiver<M> receiver, M message, Throwable t)
+	{
+	}
+
+	@Override
+	public void receiverSlow(Broadcaster<M> broadcaster, BroadcastReceiver<M> receiver, long nanos)
+	{
+	}
+
+}
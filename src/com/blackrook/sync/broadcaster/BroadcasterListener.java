@@ -0,0 +1,39 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Black Rook Software
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.sync.broadcaster;
+
+/**
+ * Listener archetype for Broadcasters.
+ * <p>
+ * Listeners are called on the broadcasting thread, after the broadcast (or parallel broadcast chunk)
+ * that caused the call is finished and no longer holds any locks, so they may add or remove receivers.
+ * @param <M> the message type.
+ * @author Matthew Tropiano
+ * @since 2.7.0
+ */
+public interface BroadcasterListener<M extends Object>
+{
+	/**
+	 * Called when a receiver throws an exception while receiving a message.
+	 * The rest of the receivers still received the message.
+	 * @param broadcaster the broadcaster.
+	 * @param receiver the receiver that threw the exception.
+	 * @param message the message, or null if a {@link BatchBroadcastReceiver} failed on a whole batch.
+	 * @param t the exception thrown.
+	 */
+	public void receiverError(Broadcaster<M> broadcaster, BroadcastReceiver<M> receiver, M message, Throwable t);
+
+	/**
+	 * Called when a timed delivery to a receiver took at least the broadcaster's slow threshold.
+	 * @param broadcaster the broadcaster.
+	 * @param receiver the slow receiver.
+	 * @param nanos the time the delivery took, in nanoseconds.
+	 * @see Broadcaster#setTiming(int, long)
+	 */
+	public void receiverSlow(Broadcaster<M> broadcaster, BroadcastReceiver<M> receiver, long nanos);
+}
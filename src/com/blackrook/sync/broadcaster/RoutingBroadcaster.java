@@ -0,0 +1,342 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Black Rook Software
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.sync.broadcaster;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.blackrook.commons.hash.Hash;
+import com.blackrook.commons.list.List;
+
+/**
+ * Broadcaster that routes messages by type, to receivers that subscribed to that type.
+ * <p>
+ * Receivers subscribe to a class or interface, and receive every message that is an instance of it.
+ * The receivers for each concrete message class (every receiver subscribed to the class, its superclasses,
+ * or any interface it implements) are worked out on the first broadcast of that class, and cached,
+ * so broadcasts only cost a table lookup plus a call per interested receiver, no matter how many
+ * receivers there are in total. The cache is cleared on every add or remove.
+ * <p>
+ * A receiver subscribed to more than one matching type still receives each message once.
+ * Broadcasts take no locks once the receivers for a class are cached, and happen on the thread that
+ * calls {@link #broadcast(Object)}.
+ * <p>
+ * If a receiver throws an exception, the rest of the receivers still get the message, and the exception
+ * is passed to the {@link RoutingBroadcasterListener}s, or rethrown after the broadcast if there are none.
+ * @param <M> the base message type.
+ * @author Matthew Tropiano
+ * @since 2.7.0
+ */
+public class RoutingBroadcaster<M extends Object>
+{
+	/** Empty receiver array. */
+	private static final BroadcastReceiver<?>[] NO_RECEIVERS = new BroadcastReceiver<?>[0];
+
+	/** Broadcaster name. */
+	private String name;
+
+	/** Map of subscribed type to receivers. Types with no receivers are removed. Guarded by itself. */
+	private Map<Class<?>, Hash<BroadcastReceiver<?>>> subscriptions;
+	/** Listeners. Replaced on every change. */
+	private volatile RoutingBroadcasterListener<M>[] listeners;
+	/** Mutex for listener changes. */
+	private Object LISTENER_MUTEX = new Object();
+	/** Amount of subscriptions. */
+	private volatile int subscriptionCount;
+	/** Cache of message class to interested receivers. Replaced on every change. */
+	private volatile ConcurrentHashMap<Class<?>, BroadcastReceiver<?>[]> dispatchCache;
+
+	/**
+	 * Creates a new routing broadcaster.
+	 * @param name the broadcaster name.
+	 */
+	public RoutingBroadcaster(String name)
+	{
+		this.name = name;
+		this.subscriptions = new HashMap<Class<?>, Hash<BroadcastReceiver<?>>>();
+		this.listeners = createListenerArray(0);
+		this.subscriptionCount = 0;
+		this.dispatchCache = new ConcurrentHashMap<Class<?>, BroadcastReceiver<?>[]>();
+	}
+
+	/**
+	 * Returns the name of this broadcaster.
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * Sends a message to all receivers subscribed to its class, or any of its supertypes.
+	 * @param message the message to send.
+	 * @throws NullPointerException if message is null.
+	 * @throws CompletionException if a receiver threw a checked exception and there are no listeners.
+	 */
+	@SuppressWarnings("unchecked")
+	public void broadcast(M message)
+	{
+		BroadcastReceiver<?>[] dispatch = getDispatch(message.getClass());
+		Throwable unhandled = null;
+		for (int i = 0; i < dispatch.length; i++)
+		{
+			try {
+				((BroadcastReceiver<M>)dispatch[i]).receiveBroadcast(message);
+			} catch (Throwable t) {
+				if (!fireError(dispatch[i], message, t) && unhandled == null)
+					unhandled = t;
+			}
+		}
+		
+		if (unhandled == null)
+			return;
+		if (unhandled instanceof RuntimeException)
+			throw (RuntimeException)unhandled;
+		if (unhandled instanceof Error)
+			throw (Error)unhandled;
+		throw new CompletionException(unhandled);
+	}
+
+	/**
+	 * Passes a receiver error to the listeners.
+	 * @return true if there were listeners to pass it to, false if not.
+	 */
+	private boolean fireError(BroadcastReceiver<?> receiver, M message, Throwable t)
+	{
+		RoutingBroadcasterListener<M>[] ls = listeners;
+		for (int i = 0; i < ls.length; i++)
+		{
+			try {
+				ls[i].receiverError(this, receiver, message, t);
+			} catch (Throwable e) {
+				// Listener problems are not the broadcast's problems.
+			}
+		}
+		return ls.length > 0;
+	}
+
+	/**
+	 * Adds a listener to this broadcaster.
+	 * @param listener the listener to add.
+	 */
+	public void addListener(RoutingBroadcasterListener<M> listener)
+	{
+		synchronized (LISTENER_MUTEX)
+		{
+			RoutingBroadcasterListener<M>[] ls = listeners;
+			RoutingBroadcasterListener<M>[] out = createListenerArray(ls.length + 1);
+			System.arraycopy(ls, 0, out, 0, ls.length);
+			out[ls.length] = listener;
+			listeners = out;
+		}
+	}
+
+	/**
+	 * Removes a listener from this broadcaster.
+	 * @param listener the listener to remove.
+	 * @return true if removed, false if not.
+	 */
+	public boolean removeListener(RoutingBroadcasterListener<M> listener)
+	{
+		synchronized (LISTENER_MUTEX)
+		{
+			RoutingBroadcasterListener<M>[] ls = listeners;
+			for (int i = 0; i < ls.length; i++)
+			{
+				if (ls[i] == listener)
+				{
+					RoutingBroadcasterListener<M>[] out = createListenerArray(ls.length - 1);
+					System.arraycopy(ls, 0, out, 0, i);
+					System.arraycopy(ls, i + 1, out, i, ls.length - i - 1);
+					listeners = out;
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Creates a new listener array.
+	 */
+	@SuppressWarnings("unchecked")
+	private RoutingBroadcasterListener<M>[] createListenerArray(int length)
+	{
+		return (RoutingBroadcasterListener<M>[])new RoutingBroadcasterListener<?>[length];
+	}
+
+	/**
+	 * Subscribes a receiver to a message type.
+	 * @param <T> the subscribed type.
+	 * @param type the message class or interface to receive instances of.
+	 * @param receiver the receiver.
+	 * @return true if added, false if the receiver was already subscribed to the type.
+	 */
+	public <T extends M> boolean addReceiver(Class<T> type, BroadcastReceiver<? super T> receiver)
+	{
+		synchronized (subscriptions)
+		{
+			Hash<BroadcastReceiver<?>> set = subscriptions.get(type);
+			if (set == null)
+			{
+				set = new Hash<BroadcastReceiver<?>>(4);
+				subscriptions.put(type, set);
+			}
+			if (set.contains(receiver))
+				return false;
+			set.put(receiver);
+			subscriptionCount++;
+			dispatchCache = new ConcurrentHashMap<Class<?>, BroadcastReceiver<?>[]>();
+		}
+		return true;
+	}
+
+	/**
+	 * Unsubscribes a receiver from a message type.
+	 * @param type the message class or interface.
+	 * @param receiver the receiver.
+	 * @return true if removed, false if the receiver was not subscribed to the type.
+	 */
+	public boolean removeReceiver(Class<? extends M> type, BroadcastReceiver<?> receiver)
+	{
+		synchronized (subscriptions)
+		{
+			Hash<BroadcastReceiver<?>> set = subscriptions.get(type);
+			if (set == null || !set.remove(receiver))
+				return false;
+			if (set.size() == 0)
+				subscriptions.remove(type);
+			subscriptionCount--;
+			dispatchCache = new ConcurrentHashMap<Class<?>, BroadcastReceiver<?>[]>();
+		}
+		return true;
+	}
+
+	/**
+	 * Unsubscribes a receiver from every message type.
+	 * @param receiver the receiver.
+	 * @return true if it was subscribed to anything, false if not.
+	 */
+	public boolean removeReceiver(BroadcastReceiver<?> receiver)
+	{
+		boolean out = false;
+		synchronized (subscriptions)
+		{
+			Iterator<Hash<BroadcastReceiver<?>>> it = subscriptions.values().iterator();
+			while (it.hasNext())
+			{
+				Hash<BroadcastReceiver<?>> set = it.next();
+				if (set.remove(receiver))
+				{
+					subscriptionCount--;
+					out = true;
+					if (set.size() == 0)
+						it.remove();
+				}
+			}
+			if (out)
+				dispatchCache = new ConcurrentHashMap<Class<?>, BroadcastReceiver<?>[]>();
+		}
+		return out;
+	}
+
+	/**
+	 * Returns the amount of subscriptions (receiver and type pairs).
+	 */
+	public int getSubscriptionCount()
+	{
+		return subscriptionCount;
+	}
+
+	/**
+	 * Returns true if this has no subscriptions.
+	 */
+	public boolean isEmpty()
+	{
+		return getSubscriptionCount() == 0;
+	}
+
+	/**
+	 * Returns the amount of message classes with cached receivers.
+	 */
+	public int getCachedClassCount()
+	{
+		return dispatchCache.size();
+	}
+
+	/**
+	 * Gets the receivers interested in a message class, from the cache or worked out and cached.
+	 */
+	private BroadcastReceiver<?>[] getDispatch(Class<?> messageClass)
+	{
+		BroadcastReceiver<?>[] out = dispatchCache.get(messageClass);
+		if (out != null)
+			return out;
+
+		synchronized (subscriptions)
+		{
+			// cache is only replaced under this lock, so anything put here matches the subscriptions.
+			ConcurrentHashMap<Class<?>, BroadcastReceiver<?>[]> cache = dispatchCache;
+			out = cache.get(messageClass);
+			if (out == null)
+			{
+				out = resolve(messageClass);
+				cache.put(messageClass, out);
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Works out the receivers interested in a message class.
+	 * Must be called with the subscription lock held.
+	 */
+	private BroadcastReceiver<?>[] resolve(Class<?> messageClass)
+	{
+		Hash<Class<?>> visited = new Hash<Class<?>>();
+		Hash<BroadcastReceiver<?>> seen = new Hash<BroadcastReceiver<?>>();
+		List<BroadcastReceiver<?>> found = new List<BroadcastReceiver<?>>();
+		for (Class<?> c = messageClass; c != null; c = c.getSuperclass())
+			collect(c, visited, seen, found);
+
+		if (found.size() == 0)
+			return NO_RECEIVERS;
+
+		BroadcastReceiver<?>[] out = new BroadcastReceiver<?>[found.size()];
+		for (int i = 0; i < out.length; i++)
+			out[i] = found.get(i);
+		return out;
+	}
+
+	/**
+	 * Collects the receivers subscribed to a type and its interfaces.
+	 */
+	private void collect(Class<?> type, Hash<Class<?>> visited, Hash<BroadcastReceiver<?>> seen, List<BroadcastReceiver<?>> found)
+	{
+		if (visited.contains(type))
+			return;
+		visited.put(type);
+
+		Hash<BroadcastReceiver<?>> set = subscriptions.get(type);
+		if (set != null) for (BroadcastReceiver<?> receiver : set)
+		{
+			if (!seen.contains(receiver))
+			{
+				seen.put(receiver);
+				found.add(receiver);
+			}
+		}
+
+		for (Class<?> iface : type.getInterfaces())
+			collect(iface, visited, seen, found);
+	}
+
+}
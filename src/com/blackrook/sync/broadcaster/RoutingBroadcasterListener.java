@@ -0,0 +1,30 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Black Rook Software
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.sync.broadcaster;
+
+/**
+ * Listener archetype for RoutingBroadcasters.
+ * <p>
+ * Listeners are called on the broadcasting thread, which holds no locks, so they may add or remove receivers.
+ * @param <M> the base message type.
+ * @author Matthew Tropiano
+ * @since 2.7.0
+ */
+public interface RoutingBroadcasterListener<M extends Object>
+{
+	/**
+	 * Called when a receiver throws an exception while receiving a message.
+	 * The rest of the receivers still receive the message.
+	 * @param broadcaster the broadcaster.
+	 * @param receiver the receiver that threw the exception.
+	 * @param message the message.
+	 * @param t the exception thrown.
+	 */
+	public void receiverError(RoutingBroadcaster<M> broadcaster, BroadcastReceiver<?> receiver, M message, Throwable t);
+
+}
@@ -7,171 +7,1351 @@
  ******************************************************************************/
 package com.blackrook.sync.message;
 
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
 import com.blackrook.commons.hash.Hash;
-import com.blackrook.commons.hash.HashedQueueMap;
 import com.blackrook.commons.linkedlist.Queue;
 
 /**
  * This is the broadcaster that sends messages to all registered listeners.
  * The broadcaster has a separate thread that it uses to send to the listeners.
+ * <p>
+ * A broadcaster can also have several dispatcher threads, each with its own queue. Messages are
+ * assigned to a dispatcher by type, or by an ordering key if one is given via
+ * {@link #broadcastOrdered(Object, String, Object...)}, so messages of the same type (or with the
+ * same ordering key) are always delivered in the order they were broadcast, while messages of
+ * different types can be delivered in parallel.
+ * <p>
+ * Each dispatcher has a ring of reusable {@link MessageSlot}s, allocated up front. Messages can be
+ * broadcast without allocating anything by claiming a slot via {@link #claim(String)}, filling in its
+ * typed fields, and publishing it via {@link #publish(MessageSlot)}. If a dispatcher's ring is full,
+ * new slots are allocated and queued behind it, so broadcasts never wait and order is kept.
+ * <p>
+ * Message types can be registered via {@link #registerMessageType(String)}, which gives them an integer ID.
+ * Messages can be broadcast by ID, and messages of registered types are dispatched through a table of
+ * listeners per ID, so routing them takes no lookups or locks. Registering a type adds one entry to the table,
+ * and registering or de-registering a listener only changes the entries of the types it is called for.
+ * Types are never registered implicitly: messages of types that are not registered are routed by looking up
+ * their listeners by name, which are kept for a limited amount of types until the listeners change, so
+ * one-off types do not take up space forever.
+ * <p>
+ * Listeners can subscribe to patterns of message types as well as exact types, where types are split into
+ * segments on <code>'.'</code>, a <code>*</code> segment matches any one segment, and a <code>**</code> segment
+ * matches any amount of segments. For example, a listener for <code>order.*</code> receives <code>order.new</code>
+ * and <code>order.cancel</code>. Patterns are matched once per message type, when its table entry is built.
+ * <p>
+ * The registered listeners, message types, and the dispatch table are kept together in one registry snapshot
+ * that is replaced on every change, so dispatching never takes a lock, listeners are called without any of the
+ * broadcaster's locks held, and registering or de-registering a listener (even from inside a listener) never
+ * waits on dispatch.
+ * <p>
+ * {@link #flush()} and {@link #awaitDrained(long)} wait for every message broadcast so far to be delivered,
+ * but not for messages broadcast while waiting, and {@link #broadcastAndWait(String, Object...)} waits for a
+ * single message. Since messages are delivered in the order that their slots were claimed, a slot that is
+ * claimed and never published would hold up its dispatcher for good, so a slot that is next in line for
+ * delivery and is not published within the claim timeout (see {@link #setClaimTimeout(long)}) is abandoned:
+ * it is skipped, and publishing it later throws an exception. A broadcaster that is no
+ * longer needed should be stopped via {@link #shutdown()}, which stops new broadcasts, and lets the
+ * dispatcher threads end once they deliver everything already broadcast.
+ * <p>
+ * A {@link MessageJournal} can be set via {@link #setJournal(MessageJournal)}, which appends every
+ * published message to memory-mapped files before it is delivered, so that messages that were not delivered
+ * before a restart can be replayed.
+ * <p>
+ * Message types can be set to conflate via {@link #setConflating(String, boolean)}, for messages where only the
+ * latest value matters. A conflating message is keyed by its ordering key, or its type if it has none, and
+ * if a message with the same type and key is still waiting to be delivered, the new message's contents replace
+ * the waiting message's, instead of being queued. Ordering keys are journaled, so replayed messages conflate
+ * by the same keys as they did when they were first published. A dispatcher then holds at most one waiting message per key
+ * of a conflating type, however fast they are broadcast. Conflating messages are queued when they are published
+ * rather than when they are claimed, so a claimed one never holds up anything else.
  * @author Matthew Tropiano
  * @since 2.5.0
  */
 public class MessageBroadcaster
 {
-	/** Message queue. */
-	private Queue<Message> messageQueue;
-	/** List of all listeners. */
-	private Hash<MessageListener> allMessageListeners;
-
-	/** List of "accept all" listeners. */
-	private Queue<MessageListener> messageListeners;
-	/** Map of "certain type" listeners. */
-	private HashedQueueMap<String, MessageListener> messageListenerMap;
-	/** Broadcaster thread. */
-	private BroadcasterThread broadcaster;
+	/** Default amount of message slots per dispatcher. */
+	public static final int DEFAULT_RING_SIZE = 1024;
+	/** Default claim timeout in milliseconds. */
+	public static final long DEFAULT_CLAIM_TIMEOUT = 10000L;
+	/** No listeners. */
+	private static final MessageListener[] NO_LISTENERS = new MessageListener[0];
 	
+	/** Dispatcher threads. */
+	private DispatcherThread[] dispatchers;
+	/** The current registry of listeners and message types. */
+	private AtomicReference<Registry> registry;
+	/** Mutex for registry changes. */
+	private Object REGISTRY_MUTEX = new Object();
+	/** Amount of messages claimed but not yet delivered. */
+	private AtomicLong pendingCount;
+	/** Mutex for waiting on drains. */
+	private Object DRAIN_MUTEX = new Object();
+	/** Amount of threads waiting on drains. */
+	private volatile int drainWaiters;
+	/** Time a claimed slot can hold up delivery before it is abandoned, in nanoseconds, or 0 for no limit. */
+	private volatile long claimTimeoutNanos;
+	/** Set on shutdown. */
+	private volatile boolean shutdown;
+	/** Journal for published messages, if any. */
+	private volatile MessageJournal journal;
+
 	/**
-	 * Creates a new message broadcaster.
+	 * Creates a new message broadcaster with one dispatcher thread.
 	 */
 	public MessageBroadcaster()
 	{
-		messageQueue = new Queue<Message>();
-		allMessageListeners = new Hash<MessageListener>();
-		messageListeners = new Queue<MessageListener>();
-		messageListenerMap = new HashedQueueMap<String, MessageListener>();
-		broadcaster = new BroadcasterThread();
-		broadcaster.start();
+		this(1);
+	}
+
+	/**
+	 * Creates a new message broadcaster with the default ring size.
+	 * @param threads the amount of dispatcher threads.
+	 * @throws IllegalArgumentException if threads is less than 1.
+	 * @since 2.7.0
+	 */
+	public MessageBroadcaster(int threads)
+	{
+		this(threads, DEFAULT_RING_SIZE);
+	}
+
+	/**
+	 * Creates a new message broadcaster.
+	 * @param threads the amount of dispatcher threads.
+	 * @param ringSize the amount of reusable message slots per dispatcher.
+	 * @throws IllegalArgumentException if threads or ringSize is less than 1.
+	 * @since 2.7.0
+	 */
+	public MessageBroadcaster(int threads, int ringSize)
+	{
+		if (threads < 1)
+			throw new IllegalArgumentException("Thread count must be 1 or greater.");
+		if (ringSize < 1)
+			throw new IllegalArgumentException("Ring size must be 1 or greater.");
+
+		registry = new AtomicReference<Registry>(new Registry());
+		pendingCount = new AtomicLong(0L);
+		drainWaiters = 0;
+		claimTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_CLAIM_TIMEOUT);
+		shutdown = false;
+		journal = null;
+		dispatchers = new DispatcherThread[threads];
+		for (int i = 0; i < threads; i++)
+		{
+			dispatchers[i] = new DispatcherThread(threads == 1 ? "MessageBroadcaster" : "MessageBroadcaster-" + i, i, ringSize);
+			dispatchers[i].start();
+		}
+	}
+
+	/**
+	 * Returns the amount of dispatcher threads.
+	 * @since 2.7.0
+	 */
+	public int getThreadCount()
+	{
+		return dispatchers.length;
+	}
+
+	/**
+	 * Registers a message type, and returns its ID.
+	 * If the type is already registered, this returns its existing ID.
+	 * IDs are assigned in order, starting from 0, and types stay registered for the life of the broadcaster.
+	 * @param messageType the message type.
+	 * @return the message type ID.
+	 * @throws NullPointerException if messageType is null.
+	 * @since 2.7.0
+	 */
+	public int registerMessageType(String messageType)
+	{
+		if (messageType == null)
+			throw new NullPointerException("Message type cannot be null.");
+		
+		int id = registry.get().getMessageTypeId(messageType);
+		if (id >= 0)
+			return id;
+		
+		synchronized (REGISTRY_MUTEX)
+		{
+			Registry current = registry.get();
+			if ((id = current.getMessageTypeId(messageType)) >= 0)
+				return id;
+			id = current.typeCount;
+			registry.set(current.withMessageType(messageType));
+			// mapped once the registry is current, so anyone who finds the ID also finds the type.
+			current.messageTypeIds.put(messageType, id);
+			return id;
+		}
+	}
+
+	/**
+	 * Returns the ID of a message type.
+	 * @param messageType the message type.
+	 * @return the message type ID, or -1 if it is not registered.
+	 * @since 2.7.0
+	 */
+	public int getMessageTypeId(String messageType)
+	{
+		return registry.get().getMessageTypeId(messageType);
+	}
+
+	/**
+	 * Returns the message type for an ID.
+	 * @param messageTypeId the message type ID.
+	 * @return the message type.
+	 * @throws IllegalArgumentException if no type has the ID.
+	 * @since 2.7.0
+	 */
+	public String getMessageTypeName(int messageTypeId)
+	{
+		Registry current = registry.get();
+		if (messageTypeId < 0 || messageTypeId >= current.typeCount)
+			throw new IllegalArgumentException("No message type with ID " + messageTypeId);
+		return current.messageTypeNames[messageTypeId];
 	}
 
 	/**
 	 * Enqueues a message for broadcast.
+	 * It is delivered after all messages of the same type that were broadcast before it.
 	 * @param messageType the message type.
 	 * @param arguments the message arguments.
 	 */
 	public void broadcast(String messageType, Object ... arguments)
 	{
-		synchronized (messageQueue)
-		{
-			messageQueue.enqueue(new Message(messageType, arguments));
-			messageQueue.notify();
-		}
+		publish(claim(messageType).setArguments(arguments));
 	}
-	
+
 	/**
-	 * Registers a listener with this broadcaster.
-	 * @param listener the listener to add.
+	 * Enqueues a message for broadcast, by message type ID.
+	 * It is delivered after all messages of the same type that were broadcast before it.
+	 * @param messageTypeId the message type ID.
+	 * @param arguments the message arguments.
+	 * @throws IllegalArgumentException if no type has the ID.
+	 * @see #registerMessageType(String)
+	 * @since 2.7.0
+	 */
+	public void broadcast(int messageTypeId, Object ... arguments)
+	{
+		publish(claim(messageTypeId).setArguments(arguments));
+	}
+
+	/**
+	 * Broadcasts a message, and waits until every listener has received it.
+	 * @param messageType the message type.
+	 * @param arguments the message arguments.
+	 * @throws InterruptedException if the current thread is interrupted while waiting.
+	 * @throws IllegalStateException if called from a dispatcher thread (of any broadcaster), which could wait
+	 * 		forever on itself or on a dispatcher that is waiting on it, or if this broadcaster was shut down.
+	 * @since 2.7.0
+	 */
+	public void broadcastAndWait(String messageType, Object ... arguments) throws InterruptedException
+	{
+		checkNotDispatcher();
+		MessageSlot slot = claim(messageType);
+		CountDownLatch latch = new CountDownLatch(1);
+		slot.completion = latch;
+		publish(slot.setArguments(arguments));
+		latch.await();
+	}
+
+	/**
+	 * Waits until every message broadcast so far is delivered.
+	 * Messages broadcast while waiting are not waited for, so this returns even if others keep broadcasting.
+	 * Slots claimed so far are waited for too, until they are published or abandoned, since they are ahead
+	 * of later messages.
+	 * @throws InterruptedException if the current thread is interrupted while waiting.
+	 * @throws IllegalStateException if called from a dispatcher thread (of any broadcaster).
+	 * @since 2.7.0
+	 */
+	public void flush() throws InterruptedException
+	{
+		awaitDrained(0L, false);
+	}
+
+	/**
+	 * Waits until every message broadcast so far is delivered, or until a timeout passes.
+	 * Messages broadcast while waiting are not waited for, so this returns even if others keep broadcasting.
+	 * Slots claimed so far are waited for too, until they are published or abandoned, since they are ahead
+	 * of later messages.
+	 * @param timeoutMillis the maximum time to wait, in milliseconds.
+	 * @return true if every message was delivered, false if the timeout passed first.
+	 * @throws InterruptedException if the current thread is interrupted while waiting.
+	 * @throws IllegalStateException if called from a dispatcher thread (of any broadcaster).
+	 * @since 2.7.0
+	 */
+	public boolean awaitDrained(long timeoutMillis) throws InterruptedException
+	{
+		return awaitDrained(TimeUnit.MILLISECONDS.toNanos(timeoutMillis), true);
+	}
+
+	/**
+	 * Waits until each dispatcher delivers everything queued on it at the time of the call.
 	 */
-	public synchronized void registerListener(MessageListener listener)
+	private boolean awaitDrained(long timeoutNanos, boolean timed) throws InterruptedException
 	{
-		if (allMessageListeners.contains(listener))
-			return;
+		checkNotDispatcher();
+		long deadline = System.nanoTime() + timeoutNanos;
 		
-		String[] types = listener.getMessageTypes();
+		long[] targets = new long[dispatchers.length];
+		for (int i = 0; i < dispatchers.length; i++)
+			targets[i] = dispatchers[i].getQueuedCount();
 		
-		if (types == null || types.length == 0)
+		synchronized (DRAIN_MUTEX)
 		{
-			synchronized (messageListeners)
-			{
-				messageListeners.enqueue(listener);
+			drainWaiters++;
+			try {
+				for (int i = 0; i < dispatchers.length; i++)
+				{
+					long remaining;
+					while (dispatchers[i].deliveredCount < targets[i])
+					{
+						if (!timed)
+							DRAIN_MUTEX.wait();
+						else if ((remaining = deadline - System.nanoTime()) <= 0L)
+							return false;
+						else
+							TimeUnit.NANOSECONDS.timedWait(DRAIN_MUTEX, remaining);
+					}
+				}
+			} finally {
+				drainWaiters--;
 			}
 		}
+		return true;
+	}
+
+	/**
+	 * Throws an exception if the current thread is a dispatcher thread.
+	 */
+	private static void checkNotDispatcher()
+	{
+		if (Thread.currentThread() instanceof DispatcherThread)
+			throw new IllegalStateException("Cannot wait for delivery on a dispatcher thread.");
+	}
+
+	/**
+	 * Sets how long a claimed slot can hold up delivery without being published.
+	 * Once a claimed slot is next in line for delivery on its dispatcher, the dispatcher waits this long for
+	 * it to be published, and then abandons it: it is not delivered, and publishing it throws an exception.
+	 * Slots of conflating types are queued when they are published, so they never hold up delivery.
+	 * @param timeoutMillis the timeout in milliseconds, or 0 to wait forever.
+	 * @throws IllegalArgumentException if timeoutMillis is less than 0.
+	 * @see #DEFAULT_CLAIM_TIMEOUT
+	 * @since 2.7.0
+	 */
+	public void setClaimTimeout(long timeoutMillis)
+	{
+		if (timeoutMillis < 0L)
+			throw new IllegalArgumentException("Timeout must be 0 or greater.");
+		this.claimTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		for (DispatcherThread dispatcher : dispatchers)
+			dispatcher.wake();
+	}
+
+	/**
+	 * Returns how long a claimed slot can hold up delivery without being published, in milliseconds, 
+	 * or 0 if there is no limit.
+	 * @since 2.7.0
+	 */
+	public long getClaimTimeout()
+	{
+		return TimeUnit.NANOSECONDS.toMillis(claimTimeoutNanos);
+	}
+
+	/**
+	 * Returns the amount of messages broadcast (or claimed) but not yet delivered.
+	 * @since 2.7.0
+	 */
+	public long getPendingCount()
+	{
+		return pendingCount.get();
+	}
+
+	/**
+	 * Shuts down this broadcaster.
+	 * New broadcasts and claims are refused, messages already broadcast are still delivered,
+	 * and then the dispatcher threads end. Does nothing if already shut down.
+	 * @since 2.7.0
+	 * @see #awaitTermination(long)
+	 */
+	public void shutdown()
+	{
+		shutdown = true;
+		for (DispatcherThread dispatcher : dispatchers)
+			dispatcher.wake();
+	}
+
+	/**
+	 * Returns true if this broadcaster was shut down.
+	 * @since 2.7.0
+	 */
+	public boolean isShutdown()
+	{
+		return shutdown;
+	}
+
+	/**
+	 * Returns true if this broadcaster was shut down, and every dispatcher thread has ended.
+	 * @since 2.7.0
+	 */
+	public boolean isTerminated()
+	{
+		if (!shutdown)
+			return false;
+		for (DispatcherThread dispatcher : dispatchers)
+			if (dispatcher.isAlive())
+				return false;
+		return true;
+	}
+
+	/**
+	 * Waits for every dispatcher thread to end after {@link #shutdown()}, or until a timeout passes.
+	 * @param timeoutMillis the maximum time to wait, in milliseconds.
+	 * @return true if terminated, false if the timeout passed first.
+	 * @throws InterruptedException if the current thread is interrupted while waiting.
+	 * @since 2.7.0
+	 */
+	public boolean awaitTermination(long timeoutMillis) throws InterruptedException
+	{
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		for (DispatcherThread dispatcher : dispatchers)
+		{
+			long remaining = deadline - System.nanoTime();
+			if (remaining > 0L)
+				TimeUnit.NANOSECONDS.timedJoin(dispatcher, remaining);
+		}
+		return isTerminated();
+	}
+
+	/**
+	 * Enqueues a message for broadcast, ordered by a key instead of its type.
+	 * It is delivered after all messages with an equal ordering key that were broadcast before it.
+	 * @param orderingKey the ordering key. If null, the message type is used.
+	 * @param messageType the message type.
+	 * @param arguments the message arguments.
+	 * @since 2.7.0
+	 */
+	public void broadcastOrdered(Object orderingKey, String messageType, Object ... arguments)
+	{
+		publish(claim(orderingKey, messageType).setArguments(arguments));
+	}
+
+	/**
+	 * Claims a message slot for a message type, to be filled in and published.
+	 * Messages are delivered in the order that their slots were claimed, so a claimed slot 
+	 * holds up later messages of the same type until it is published.
+	 * @param messageType the message type.
+	 * @return the claimed slot.
+	 * @throws IllegalStateException if this broadcaster was shut down.
+	 * @see #publish(MessageSlot)
+	 * @since 2.7.0
+	 */
+	public MessageSlot claim(String messageType)
+	{
+		return claim(null, messageType);
+	}
+
+	/**
+	 * Claims a message slot for a message type, ordered by a key instead of its type, to be filled in and published.
+	 * Messages are delivered in the order that their slots were claimed, so a claimed slot 
+	 * holds up later messages with an equal ordering key until it is published.
+	 * @param orderingKey the ordering key. If null, the message type is used.
+	 * @param messageType the message type.
+	 * @return the claimed slot.
+	 * @see #publish(MessageSlot)
+	 * @since 2.7.0
+	 */
+	public MessageSlot claim(Object orderingKey, String messageType)
+	{
+		if (messageType == null)
+			throw new NullPointerException("Message type cannot be null.");
+		return claim(orderingKey, messageType, registry.get().getMessageTypeId(messageType));
+	}
+
+	/**
+	 * Claims a message slot for a message type ID, to be filled in and published.
+	 * @param messageTypeId the message type ID.
+	 * @return the claimed slot.
+	 * @throws IllegalArgumentException if no type has the ID.
+	 * @see #claim(String)
+	 * @since 2.7.0
+	 */
+	public MessageSlot claim(int messageTypeId)
+	{
+		return claim(null, messageTypeId);
+	}
+
+	/**
+	 * Claims a message slot for a message type ID, ordered by a key instead of its type, to be filled in and published.
+	 * @param orderingKey the ordering key. If null, the message type is used.
+	 * @param messageTypeId the message type ID.
+	 * @return the claimed slot.
+	 * @throws IllegalArgumentException if no type has the ID.
+	 * @see #claim(Object, String)
+	 * @since 2.7.0
+	 */
+	public MessageSlot claim(Object orderingKey, int messageTypeId)
+	{
+		return claim(orderingKey, getMessageTypeName(messageTypeId), messageTypeId);
+	}
+
+	/**
+	 * Claims a message slot.
+	 * Messages without an ordering key are ordered by type name, so they stay in order if their type is registered later.
+	 * @param messageTypeId the message type ID, or -1 if not registered.
+	 */
+	private MessageSlot claim(Object orderingKey, String messageType, int messageTypeId)
+	{
+		DispatcherThread dispatcher = orderingKey != null 
+			? getDispatcher(orderingKey.hashCode()) 
+			: getDispatcher(messageType.hashCode());
+		MessageSlot slot;
+		if (messageTypeId >= 0 && registry.get().conflating[messageTypeId])
+		{
+			slot = dispatcher.claimDetached();
+			slot.conflationKey = orderingKey != null ? orderingKey : messageType;
+		}
 		else
 		{
-			synchronized (messageListenerMap)
-			{
-				for (String t : types)
-					messageListenerMap.enqueue(t, listener);
-			}
+			slot = dispatcher.claim();
 		}
-		
-		allMessageListeners.put(listener);
+		slot.orderingKey = orderingKey;
+		slot.messageType = messageType;
+		slot.messageTypeId = messageTypeId;
+		return slot;
 	}
-	
+
+	/**
+	 * Publishes a claimed message slot for delivery.
+	 * @param slot the slot, claimed from this broadcaster.
+	 * @throws IllegalStateException if the slot was not claimed from this broadcaster, or was already published,
+	 * 		or was abandoned because it was not published within the claim timeout, or the journal is closed.
+	 * @throws IllegalArgumentException if the journal can't encode the message. The message is not delivered.
+	 * @return the message's journal sequence number, or -1 if it was not journaled. 
+	 * 		The slot may already be delivered and reused by the time this returns, so this is the only safe
+	 * 		place for the publisher to get it.
+	 * @see MessageJournal#awaitCommit(long)
+	 * @since 2.7.0
+	 */
+	public long publish(MessageSlot slot)
+	{
+		if (slot.broadcaster != this)
+			throw new IllegalStateException("Slot was not claimed from this broadcaster.");
+		return dispatchers[slot.dispatcherIndex].publish(slot);
+	}
+
+	/**
+	 * Sets the journal that every published message is appended to, before it is delivered.
+	 * Messages replayed from a journal are not appended again.
+	 * @param journal the journal, or null for none.
+	 * @see MessageJournal#replay(long, MessageBroadcaster)
+	 * @since 2.7.0
+	 */
+	public void setJournal(MessageJournal journal)
+	{
+		this.journal = journal;
+	}
+
+	/**
+	 * Returns the journal that published messages are appended to, or null if none.
+	 * @since 2.7.0
+	 */
+	public MessageJournal getJournal()
+	{
+		return journal;
+	}
+
+	/**
+	 * Sets whether a message type conflates, so that a new message replaces an undelivered one
+	 * with the same type and ordering key (or just the same type, if it has no ordering key).
+	 * This registers the type if it is not registered. Messages already waiting are not affected.
+	 * @param messageType the message type.
+	 * @param conflating true to conflate, false to deliver every message.
+	 * @since 2.7.0
+	 */
+	public void setConflating(String messageType, boolean conflating)
+	{
+		int id = registerMessageType(messageType);
+		synchronized (REGISTRY_MUTEX)
+		{
+			Registry current = registry.get();
+			if (current.conflating[id] != conflating)
+				registry.set(current.withConflating(id, conflating));
+		}
+	}
+
+	/**
+	 * Returns true if a message type conflates.
+	 * @param messageType the message type.
+	 * @since 2.7.0
+	 */
+	public boolean isConflating(String messageType)
+	{
+		Registry current = registry.get();
+		int id = current.getMessageTypeId(messageType);
+		return id >= 0 && current.conflating[id];
+	}
+
+	/**
+	 * Returns the dispatcher for an ordering hash.
+	 */
+	private DispatcherThread getDispatcher(int h)
+	{
+		if (dispatchers.length == 1)
+			return dispatchers[0];
+		h ^= (h >>> 16);
+		return dispatchers[(h & 0x7fffffff) % dispatchers.length];
+	}
+
+	/**
+	 * Registers a listener with this broadcaster.
+	 * The listener's message types are read once, here.
+	 * @param listener the listener to add.
+	 */
+	public void registerListener(MessageListener listener)
+	{
+		synchronized (REGISTRY_MUTEX)
+		{
+			Registry current = registry.get();
+			if (current.indexOf(listener) < 0)
+				registry.set(current.withListener(listener));
+		}
+	}
+
 	/**
 	 * De-registers a listener from this broadcaster.
 	 * @param listener the listener to remove.
 	 */
-	public synchronized void deregisterListener(MessageListener listener)
+	public void deregisterListener(MessageListener listener)
 	{
-		if (!allMessageListeners.contains(listener))
-			return;
-		
-		String[] types = listener.getMessageTypes();
-		
-		if (types == null || types.length == 0)
+		synchronized (REGISTRY_MUTEX)
+		{
+			Registry current = registry.get();
+			int index = current.indexOf(listener);
+			if (index >= 0)
+				registry.set(current.withoutListener(index));
+		}
+	}
+
+	/**
+	 * Returns the amount of registered listeners.
+	 * @since 2.7.0
+	 */
+	public int getListenerCount()
+	{
+		return registry.get().listeners.length;
+	}
+
+	/**
+	 * A snapshot of the registered listeners and message types, and the resulting dispatch table.
+	 * <p>
+	 * Registries are only created under the broadcaster's registry lock, each one from the current one.
+	 * The message type arrays have spare room at the end, and a new type is written into it in place,
+	 * so adding a type does not copy anything. Older registries never read past their own type count,
+	 * so they are not affected. A listener change builds a new table, but only rebuilds the entries of
+	 * the types that the listener is called for.
+	 */
+	private static class Registry
+	{
+		/** Most listener lists of unregistered types to keep per set of listeners. */
+		private static final int LOOKUP_CACHE_SIZE = 256;
+
+		/** All listeners, in registration order. */
+		private MessageListener[] listeners;
+		/** Message types of each listener, as they were at registration. */
+		private String[][] listenerTypes;
+		/** Trie of "certain type" listeners. */
+		private MessageTopicTrie listenerTrie;
+		/** Listeners of unregistered message types, looked up recently. */
+		private LookupCache lookupCache;
+		/** Amount of registered message types. */
+		private int typeCount;
+		/** Message types by ID. Shared by every registry. */
+		private String[] messageTypeNames;
+		/** Map of message type to ID. Shared by every registry. */
+		private ConcurrentHashMap<String, Integer> messageTypeIds;
+		/** Listeners to call, by message type ID. */
+		private MessageListener[][] dispatchTable;
+		/** Conflating flags, by message type ID. */
+		private boolean[] conflating;
+
+		Registry()
+		{
+			this.listeners = NO_LISTENERS;
+			this.listenerTypes = new String[0][];
+			this.listenerTrie = new MessageTopicTrie();
+			this.lookupCache = new LookupCache(LOOKUP_CACHE_SIZE);
+			this.typeCount = 0;
+			this.messageTypeNames = new String[16];
+			this.messageTypeIds = new ConcurrentHashMap<String, Integer>();
+			this.dispatchTable = new MessageListener[16][];
+			this.conflating = new boolean[16];
+		}
+
+		/**
+		 * Creates a copy of a registry, to be changed.
+		 */
+		private Registry(Registry registry)
+		{
+			this.listeners = registry.listeners;
+			this.listenerTypes = registry.listenerTypes;
+			this.listenerTrie = registry.listenerTrie;
+			this.lookupCache = registry.lookupCache;
+			this.typeCount = registry.typeCount;
+			this.messageTypeNames = registry.messageTypeNames;
+			this.messageTypeIds = registry.messageTypeIds;
+			this.dispatchTable = registry.dispatchTable;
+			this.conflating = registry.conflating;
+		}
+
+		/**
+		 * Finds every listener for a message type.
+		 */
+		private MessageListener[] resolve(String messageType)
 		{
-			synchronized (messageListeners)
+			Hash<MessageListener> seen = new Hash<MessageListener>();
+			Queue<MessageListener> found = new Queue<MessageListener>();
+			for (int i = 0; i < listeners.length; i++)
 			{
-				messageListeners.remove(listener);
+				if (listenerTypes[i] == null)
+				{
+					seen.put(listeners[i]);
+					found.enqueue(listeners[i]);
+				}
 			}
+			listenerTrie.match(messageType, seen, found);
+			
+			if (found.isEmpty())
+				return NO_LISTENERS;
+			MessageListener[] out = new MessageListener[found.size()];
+			for (int n = 0; !found.isEmpty(); n++)
+				out[n] = found.dequeue();
+			return out;
 		}
-		else
+
+		/**
+		 * Returns the listeners for a message type ID.
+		 */
+		MessageListener[] getListeners(int messageTypeId)
+		{
+			return dispatchTable[messageTypeId];
+		}
+
+		/**
+		 * Returns the listeners for a message type that is not registered.
+		 * They are worked out on first use, and kept until the listeners change, for a limited amount of types
+		 * that were used recently.
+		 */
+		MessageListener[] lookup(String messageType)
+		{
+			MessageListener[] out = lookupCache.get(messageType);
+			if (out == null)
+			{
+				out = resolve(messageType);
+				lookupCache.put(messageType, out);
+			}
+			return out;
+		}
+
+		/**
+		 * Returns the ID of a message type, or -1 if not registered.
+		 */
+		int getMessageTypeId(String messageType)
+		{
+			Integer id = messageTypeIds.get(messageType);
+			return id != null && id < typeCount ? id : -1;
+		}
+
+		/**
+		 * Returns the index of a listener, or -1 if not registered.
+		 */
+		int indexOf(MessageListener listener)
+		{
+			for (int i = 0; i < listeners.length; i++)
+				if (listeners[i].equals(listener))
+					return i;
+			return -1;
+		}
+
+		/**
+		 * Returns a registry with another message type, whose ID is this registry's type count.
+		 * The type must be added to the ID map once the new registry is current.
+		 */
+		Registry withMessageType(String messageType)
+		{
+			Registry out = new Registry(this);
+			if (typeCount == messageTypeNames.length)
+			{
+				int capacity = typeCount * 2;
+				out.messageTypeNames = Arrays.copyOf(messageTypeNames, capacity);
+				out.dispatchTable = Arrays.copyOf(dispatchTable, capacity);
+				out.conflating = Arrays.copyOf(conflating, capacity);
+			}
+			out.messageTypeNames[typeCount] = messageType;
+			out.dispatchTable[typeCount] = resolve(messageType);
+			out.conflating[typeCount] = false;
+			out.typeCount = typeCount + 1;
+			out.lookupCache.remove(messageType);
+			return out;
+		}
+
+		/**
+		 * Returns a registry with a message type's conflating flag changed.
+		 */
+		Registry withConflating(int messageTypeId, boolean value)
+		{
+			Registry out = new Registry(this);
+			out.conflating = conflating.clone();
+			out.conflating[messageTypeId] = value;
+			return out;
+		}
+
+		/**
+		 * Returns a registry with another listener.
+		 */
+		Registry withListener(MessageListener listener)
 		{
-			synchronized (messageListenerMap)
+			String[] types = listener.getMessageTypes();
+			if (types != null && types.length == 0)
+				types = null;
+			else if (types != null)
+				types = types.clone();
+			
+			int count = listeners.length;
+			Registry out = new Registry(this);
+			out.listeners = Arrays.copyOf(listeners, count + 1);
+			out.listenerTypes = Arrays.copyOf(listenerTypes, count + 1);
+			out.listeners[count] = listener;
+			out.listenerTypes[count] = types;
+			out.listenerTrie = out.buildTrie();
+			out.lookupCache = new LookupCache(LOOKUP_CACHE_SIZE);
+			
+			// only the entries of matching types change, and the listener goes last in each.
+			MessageTopicTrie matcher = null;
+			if (types != null)
 			{
+				matcher = new MessageTopicTrie();
 				for (String t : types)
-					messageListenerMap.removeValue(t, listener);
+					matcher.add(t, listener);
+			}
+			out.dispatchTable = new MessageListener[dispatchTable.length][];
+			for (int i = 0; i < typeCount; i++)
+			{
+				MessageListener[] entry = dispatchTable[i];
+				if (matcher == null || matcher.matches(messageTypeNames[i]))
+				{
+					entry = Arrays.copyOf(entry, entry.length + 1);
+					entry[entry.length - 1] = listener;
+				}
+				out.dispatchTable[i] = entry;
 			}
+			return out;
+		}
+
+		/**
+		 * Returns a registry without a listener.
+		 */
+		Registry withoutListener(int index)
+		{
+			MessageListener listener = listeners[index];
+			int count = listeners.length;
+			Registry out = new Registry(this);
+			out.listeners = new MessageListener[count - 1];
+			out.listenerTypes = new String[count - 1][];
+			System.arraycopy(listeners, 0, out.listeners, 0, index);
+			System.arraycopy(listeners, index + 1, out.listeners, index, count - index - 1);
+			System.arraycopy(listenerTypes, 0, out.listenerTypes, 0, index);
+			System.arraycopy(listenerTypes, index + 1, out.listenerTypes, index, count - index - 1);
+			out.listenerTrie = out.buildTrie();
+			out.lookupCache = new LookupCache(LOOKUP_CACHE_SIZE);
+			
+			// only the entries that have the listener change.
+			out.dispatchTable = new MessageListener[dispatchTable.length][];
+			for (int i = 0; i < typeCount; i++)
+				out.dispatchTable[i] = without(dispatchTable[i], listener);
+			return out;
+		}
+
+		/**
+		 * Builds the trie of "certain type" listeners.
+		 */
+		private MessageTopicTrie buildTrie()
+		{
+			MessageTopicTrie out = new MessageTopicTrie();
+			for (int i = 0; i < listeners.length; i++)
+				if (listenerTypes[i] != null) for (String t : listenerTypes[i])
+					out.add(t, listeners[i]);
+			return out;
+		}
+
+		/**
+		 * Returns a listener array without a listener, or the same array if it does not have it.
+		 */
+		private static MessageListener[] without(MessageListener[] entry, MessageListener listener)
+		{
+			for (int i = 0; i < entry.length; i++)
+			{
+				if (entry[i] == listener)
+				{
+					if (entry.length == 1)
+						return NO_LISTENERS;
+					MessageListener[] out = new MessageListener[entry.length - 1];
+					System.arraycopy(entry, 0, out, 0, i);
+					System.arraycopy(entry, i + 1, out, i, entry.length - i - 1);
+					return out;
+				}
+			}
+			return entry;
 		}
-		
-		allMessageListeners.remove(listener);
 	}
-	
+
 	/**
-	 * Message object that gets passed to other listeners.
+	 * A bounded cache of listener lists for unregistered message types.
+	 * <p>
+	 * Lookups are lock-free, and only mark the entry as used. Once the cache is full, adding an entry evicts
+	 * one with a clock sweep: the hand goes around the entries, clearing the used mark of each one it passes,
+	 * and evicts the first one that was not used since the hand last passed it.
 	 */
-	private static class Message
+	private static class LookupCache
 	{
-		String messageType;
-		Object[] arguments;
-		
-		Message(String messageType, Object ... arguments)
+		/** Entries by message type. */
+		private ConcurrentHashMap<String, LookupEntry> map;
+		/** Entries in clock order. Guarded by this. */
+		private LookupEntry[] clock;
+		/** Amount of entries in the clock. Guarded by this. */
+		private int count;
+		/** Position of the clock hand. Guarded by this. */
+		private int hand;
+
+		LookupCache(int capacity)
+		{
+			this.map = new ConcurrentHashMap<String, LookupEntry>();
+			this.clock = new LookupEntry[capacity];
+			this.count = 0;
+			this.hand = 0;
+		}
+
+		/**
+		 * Returns the listeners of a message type, or null if not cached.
+		 */
+		MessageListener[] get(String messageType)
+		{
+			LookupEntry entry = map.get(messageType);
+			if (entry == null)
+				return null;
+			// skip the write if already marked, so hot entries are only read.
+			if (!entry.used)
+				entry.used = true;
+			return entry.listeners;
+		}
+
+		/**
+		 * Adds the listeners of a message type, evicting another type if full.
+		 */
+		synchronized void put(String messageType, MessageListener[] listeners)
+		{
+			if (map.containsKey(messageType))
+				return;
+			
+			LookupEntry entry = new LookupEntry(messageType, listeners);
+			if (count < clock.length)
+			{
+				clock[count++] = entry;
+			}
+			else
+			{
+				while (clock[hand].used)
+				{
+					clock[hand].used = false;
+					hand = (hand + 1) % clock.length;
+				}
+				map.remove(clock[hand].messageType, clock[hand]);
+				clock[hand] = entry;
+				hand = (hand + 1) % clock.length;
+			}
+			map.put(messageType, entry);
+		}
+
+		/**
+		 * Removes the listeners of a message type.
+		 * Its place in the clock is freed up when the hand next gets to it.
+		 */
+		void remove(String messageType)
+		{
+			LookupEntry entry = map.remove(messageType);
+			if (entry != null)
+				entry.used = false;
+		}
+	}
+
+	/**
+	 * A cached listener list.
+	 */
+	private static class LookupEntry
+	{
+		/** The message type. */
+		private final String messageType;
+		/** The listeners. */
+		private final MessageListener[] listeners;
+		/** Set when looked up, cleared by the clock hand. */
+		private volatile boolean used;
+
+		LookupEntry(String messageType, MessageListener[] listeners)
 		{
 			this.messageType = messageType;
-			this.arguments = arguments;
+			this.listeners = listeners;
+			this.used = false;
 		}
 	}
-	
+
 	/**
-	 * The broadcaster thread.
+	 * A dispatcher thread, with its own ring of message slots.
 	 */
-	private class BroadcasterThread extends Thread
+	private class DispatcherThread extends Thread
 	{
-		BroadcasterThread()
+		/** This dispatcher's index. */
+		private int index;
+		/** Mutex for the ring and overflow queue. */
+		private Object QUEUE_MUTEX = new Object();
+		/** Ring of reusable slots. */
+		private MessageSlot[] ring;
+		/** Sequence of the next ring slot to deliver. */
+		private long head;
+		/** Sequence of the next ring slot to claim. */
+		private long tail;
+		/** Slots claimed while the ring was full, in order. */
+		private Queue<MessageSlot> overflow;
+		/** Amount of slots ever queued for delivery. Guarded by QUEUE_MUTEX. */
+		private long queuedCount;
+		/** Amount of queued slots delivered. Only written by this thread. */
+		private volatile long deliveredCount;
+		/** Undelivered conflating slots by key, per message type ID. */
+		private Map<Object, MessageSlot>[] conflated;
+		/** Detached slots for reuse. */
+		private MessageSlot[] spares;
+		/** Amount of detached slots for reuse. */
+		private int spareCount;
+
+		DispatcherThread(String name, int index, int ringSize)
 		{
-			super("MessageBroadcaster");
+			super(name);
 			setDaemon(true);
+			this.index = index;
+			ring = new MessageSlot[ringSize];
+			for (int i = 0; i < ringSize; i++)
+				ring[i] = new MessageSlot(MessageBroadcaster.this, index, true);
+			head = 0L;
+			tail = 0L;
+			overflow = new Queue<MessageSlot>();
+			queuedCount = 0L;
+			deliveredCount = 0L;
+			conflated = createMapArray(0);
+			spares = new MessageSlot[4];
+			spareCount = 0;
 		}
-		
-		@Override
-		public void run()
+
+		@SuppressWarnings("unchecked")
+		private Map<Object, MessageSlot>[] createMapArray(int length)
+		{
+			return (Map<Object, MessageSlot>[])new Map<?, ?>[length];
+		}
+
+		/**
+		 * Claims the next slot on this dispatcher.
+		 */
+		MessageSlot claim()
+		{
+			synchronized (QUEUE_MUTEX)
+			{
+				if (shutdown)
+					throw new IllegalStateException("Broadcaster was shut down.");
+				pendingCount.incrementAndGet();
+				queuedCount++;
+				
+				// once anything overflows, everything after it must too, to keep the order.
+				if (overflow.isEmpty() && tail - head < ring.length)
+					return ring[(int)(tail++ % ring.length)];
+				
+				MessageSlot slot = new MessageSlot(MessageBroadcaster.this, index, false);
+				overflow.enqueue(slot);
+				return slot;
+			}
+		}
+
+		/**
+		 * Claims a slot for a conflating type on this dispatcher, which is queued when it is published.
+		 */
+		MessageSlot claimDetached()
 		{
-			while (true)
+			synchronized (QUEUE_MUTEX)
 			{
-				Message message = null;
-				synchronized (messageQueue)
+				if (shutdown)
+					throw new IllegalStateException("Broadcaster was shut down.");
+				pendingCount.incrementAndGet();
+				
+				MessageSlot slot = spareCount > 0 ? spares[--spareCount] : new MessageSlot(MessageBroadcaster.this, index, false);
+				slot.detached = true;
+				return slot;
+			}
+		}
+
+		/**
+		 * Publishes a claimed slot on this dispatcher.
+		 */
+		long publish(MessageSlot slot)
+		{
+			synchronized (QUEUE_MUTEX)
+			{
+				if (slot.abandoned)
+					throw new IllegalStateException("Slot was abandoned, since it was not published within the claim timeout.");
+				if (slot.published || slot.messageType == null)
+					throw new IllegalStateException("Slot is not claimed, or was already published.");
+				
+				// journaled under this lock, so the journal has each dispatcher's messages in publish order.
+				MessageJournal journal = MessageBroadcaster.this.journal;
+				long sequence = slot.sequence;
+				try {
+					if (journal != null && !slot.replayed)
+						sequence = slot.sequence = journal.append(slot);
+					return sequence;
+				} catch (RuntimeException e) {
+					slot.skipped = true;
+					throw e;
+				} finally {
+					if (slot.detached)
+						conflate(slot);
+					else
+					{
+						slot.published = true;
+						QUEUE_MUTEX.notify();
+					}
+				}
+			}
+		}
+
+		/**
+		 * Merges a published detached slot into the undelivered slot with the same key, or queues it.
+		 * Must be called with QUEUE_MUTEX held.
+		 */
+		private void conflate(MessageSlot slot)
+		{
+			if (slot.skipped)
+			{
+				recycle(slot);
+				delivered();
+				return;
+			}
+			
+			Map<Object, MessageSlot> pending = getConflated(slot.messageTypeId);
+			MessageSlot target = pending.get(slot.conflationKey);
+			// someone waiting on this message needs it delivered on its own.
+			if (target != null && slot.completion == null)
+			{
+				// the waiting message becomes the new one, replayed or not, and covers the old one's sequence.
+				target.supersede(slot);
+				recycle(slot);
+				delivered();
+				return;
+			}
+			
+			if (overflow.isEmpty() && tail - head < ring.length)
+			{
+				target = ring[(int)(tail++ % ring.length)];
+				target.copyFrom(slot);
+				target.completion = slot.completion;
+				recycle(slot);
+			}
+			else
+			{
+				slot.detached = false;
+				overflow.enqueue(target = slot);
+			}
+			
+			queuedCount++;
+			target.published = true;
+			pending.put(target.conflationKey, target);
+			QUEUE_MUTEX.notify();
+		}
+
+		/**
+		 * Gets the map of undelivered slots for a conflating type.
+		 * Must be called with QUEUE_MUTEX held.
+		 */
+		private Map<Object, MessageSlot> getConflated(int messageTypeId)
+		{
+			if (messageTypeId >= conflated.length)
+				conflated = Arrays.copyOf(conflated, Math.max(messageTypeId + 1, conflated.length * 2));
+			Map<Object, MessageSlot> out = conflated[messageTypeId];
+			if (out == null)
+				out = conflated[messageTypeId] = new java.util.HashMap<Object, MessageSlot>();
+			return out;
+		}
+
+		/**
+		 * Clears a detached slot and keeps it for reuse.
+		 * Must be called with QUEUE_MUTEX held.
+		 */
+		private void recycle(MessageSlot slot)
+		{
+			slot.clear();
+			if (spareCount == spares.length)
+				spares = Arrays.copyOf(spares, spareCount * 2);
+			spares[spareCount++] = slot;
+		}
+
+		/**
+		 * Returns the amount of slots ever queued for delivery on this dispatcher.
+		 */
+		long getQueuedCount()
+		{
+			synchronized (QUEUE_MUTEX)
+			{
+				return queuedCount;
+			}
+		}
+
+		/**
+		 * Wakes this dispatcher up, to check for shutdown or a new claim timeout.
+		 */
+		void wake()
+		{
+			synchronized (QUEUE_MUTEX)
+			{
+				QUEUE_MUTEX.notify();
+			}
+		}
+
+		/**
+		 * Waits for the next published slot, in claim order.
+		 * @return the next slot, or null if shut down and nothing is left.
+		 */
+		private MessageSlot take()
+		{
+			synchronized (QUEUE_MUTEX)
+			{
+				while (head == tail && overflow.isEmpty())
 				{
-					while (messageQueue.isEmpty())
-						try {messageQueue.wait();	} catch (InterruptedException ex) {}
-					message = messageQueue.dequeue();
+					if (shutdown)
+						return null;
+					try {QUEUE_MUTEX.wait();} catch (InterruptedException ex) {}
 				}
 				
-				synchronized (messageListeners)
+				// the ring is always older than the overflow.
+				MessageSlot slot = head != tail ? ring[(int)(head % ring.length)] : overflow.dequeue();
+				long waited = 0L;
+				while (!slot.published)
 				{
-					for (MessageListener listener : messageListeners)
-						listener.onMessageReceive(message.messageType, message.arguments);
+					long timeout = claimTimeoutNanos;
+					if (timeout > 0L && waited >= timeout)
+						return abandon(slot);
+					long start = System.nanoTime();
+					try {
+						if (timeout > 0L)
+							TimeUnit.NANOSECONDS.timedWait(QUEUE_MUTEX, timeout - waited);
+						else
+							QUEUE_MUTEX.wait();
+					} catch (InterruptedException ex) {}
+					waited += System.nanoTime() - start;
 				}
+				
+				// anything conflating published from here on is a newer message.
+				if (slot.conflationKey != null)
+					conflated[slot.messageTypeId].remove(slot.conflationKey, slot);
+				return slot;
+			}
+		}
+
+		/**
+		 * Abandons a claimed slot that was not published in time, so that it is never used again,
+		 * and returns a skipped slot to release in its place.
+		 * Must be called with QUEUE_MUTEX held.
+		 */
+		private MessageSlot abandon(MessageSlot slot)
+		{
+			slot.abandoned = true;
+			if (!slot.pooled)
+			{
+				slot.skipped = true;
+				return slot;
+			}
+			MessageSlot replacement = new MessageSlot(MessageBroadcaster.this, index, true);
+			replacement.skipped = true;
+			ring[(int)(head % ring.length)] = replacement;
+			return replacement;
+		}
 
-				synchronized (messageListenerMap)
+		/**
+		 * Releases a delivered slot.
+		 */
+		private void release(MessageSlot slot)
+		{
+			CountDownLatch completion = slot.completion;
+			if (slot.pooled)
+			{
+				synchronized (QUEUE_MUTEX)
+				{
+					slot.clear();
+					head++;
+				}
+			}
+			
+			if (completion != null)
+				completion.countDown();
+			delivered();
+			
+			deliveredCount++;
+			if (drainWaiters > 0)
+			{
+				synchronized (DRAIN_MUTEX)
 				{
-					Queue<MessageListener> listenerQueue = messageListenerMap.get(message.messageType);
-					if (listenerQueue != null) for (MessageListener listener : listenerQueue)
-						listener.onMessageReceive(message.messageType, message.arguments);
+					DRAIN_MUTEX.notifyAll();
 				}
 			}
 		}
-		
+
+		/**
+		 * Counts a claimed message as done.
+		 */
+		private void delivered()
+		{
+			pendingCount.decrementAndGet();
+		}
+
+		@Override
+		public void run()
+		{
+			MessageSlot message;
+			while ((message = take()) != null)
+			{
+				MessageListener[] targets;
+				if (message.skipped)
+					targets = NO_LISTENERS;
+				else if (message.messageTypeId >= 0)
+					targets = registry.get().getListeners(message.messageTypeId);
+				else
+					targets = registry.get().lookup(message.messageType);
+				for (int i = 0; i < targets.length; i++)
+				{
+					MessageListener listener = targets[i];
+					try {
+						if (listener instanceof MessageSlotListener)
+							((MessageSlotListener)listener).onMessageReceive(message);
+						else
+							listener.onMessageReceive(message.messageType, message.arguments);
+					} catch (Throwable t) {
+						getUncaughtExceptionHandler().uncaughtException(this, t);
+					}
+				}
+				
+				release(message);
+			}
+		}
+
 	}
-	
+
 }
@@ -0,0 +1,58 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Black Rook Software
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.sync.message;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes the contents of {@link MessageSlot}s to bytes and reads them back, for a {@link MessageJournal}.
+ * The message type is written by the journal, so codecs only handle ordering keys, arguments, and fields.
+ * @author Matthew Tropiano
+ * @since 2.7.0
+ */
+public interface MessageCodec
+{
+	/**
+	 * Writes a slot's ordering key to a buffer, at its current position.
+	 * It is written before the slot's contents, and read back before the slot is claimed on replay.
+	 * @param orderingKey the ordering key, which can be null.
+	 * @param out the output buffer.
+	 * @throws java.nio.BufferOverflowException if the buffer is too small.
+	 * @throws IllegalArgumentException if the key can't be written.
+	 * @see MessageSlot#getOrderingKey()
+	 */
+	public void encodeKey(Object orderingKey, ByteBuffer out);
+
+	/**
+	 * Reads an ordering key from a buffer, at its current position.
+	 * @param in the input buffer.
+	 * @return the ordering key, which can be null.
+	 * @throws java.nio.BufferUnderflowException if the buffer ends early.
+	 * @throws IllegalArgumentException if the buffer contents are not valid.
+	 */
+	public Object decodeKey(ByteBuffer in);
+
+	/**
+	 * Writes the contents of a slot to a buffer, at its current position.
+	 * @param slot the slot to write.
+	 * @param out the output buffer.
+	 * @throws java.nio.BufferOverflowException if the buffer is too small.
+	 * @throws IllegalArgumentException if the slot contains something that can't be written.
+	 */
+	public void encode(MessageSlot slot, ByteBuffer out);
+
+	/**
+	 * Reads the contents of a slot from a buffer, from its current position to its limit.
+	 * @param in the input buffer.
+	 * @param slot the slot to fill in. It is already cleared, and its type is already set.
+	 * @throws java.nio.BufferUnderflowException if the buffer ends early.
+	 * @throws IllegalArgumentException if the buffer contents are not valid.
+	 */
+	public void decode(ByteBuffer in, MessageSlot slot);
+
+}
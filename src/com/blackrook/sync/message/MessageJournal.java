@@ -0,0 +1,648 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Black Rook Software
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.sync.message;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import com.blackrook.commons.hash.HashMap;
+import com.blackrook.commons.linkedlist.Queue;
+
+/**
+ * A write-ahead journal of broadcast messages, kept in memory-mapped segment files.
+ * <p>
+ * When set on a {@link MessageBroadcaster} via {@link MessageBroadcaster#setJournal(MessageJournal)},
+ * every published message is appended to the journal before it is delivered, and given a sequence number,
+ * starting from 0. Messages are written straight into the mapped segment by a {@link MessageCodec},
+ * along with their type and ordering key, and each record carries a CRC, so a record cut short by a crash
+ * is found and dropped when the journal is opened again.
+ * <p>
+ * Appending only writes to memory. Segments are forced to disk by a commit thread every commit interval,
+ * so many appends share one disk sync. {@link #commit()} forces everything appended so far right away, and
+ * {@link #awaitCommit(long)} waits until a single message is on disk. Segments are rolled over when they
+ * fill up, and are named after the sequence number of their first message. A full segment is forced by
+ * the commit thread, not by the publisher that filled it.
+ * <p>
+ * On startup, {@link #replay(long, MessageBroadcaster)} broadcasts every journaled message from a sequence number
+ * on, with the same type and ordering key, without journaling them again.
+ * <p>
+ * A message's sequence number is returned by {@link MessageBroadcaster#publish(MessageSlot)}, so a publisher
+ * can wait for it to be on disk via {@link #awaitCommit(long)}, and listeners can read it via
+ * {@link MessageSlot#getSequence()}, including on replayed messages. To know where to replay from, keep a
+ * delivered watermark: the lowest sequence number not yet handled by the listeners. Messages are not always
+ * delivered in sequence order (messages on different dispatchers are delivered in parallel, and slots
+ * published in a different order than they were claimed are delivered in claim order), so listeners should
+ * record each sequence number they finish, and only move the watermark past a number once every number
+ * before it is recorded too. A conflated message also stands for the messages it replaced, which are never
+ * delivered on their own, so when listeners finish it, they should record the sequence numbers from
+ * {@link MessageSlot#getSupersededSequence(int)} as well as its own, or the watermark stops at the first one
+ * replaced. Store the watermark with the listeners' own state, replay from it on startup,
+ * and pass it to {@link #deleteBefore(long)} to drop segments that are no longer needed.
+ * @author Matthew Tropiano
+ * @since 2.7.0
+ */
+public class MessageJournal
+{
+	/** Default segment size in bytes. */
+	public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+	/** Default commit interval in milliseconds. */
+	public static final long DEFAULT_COMMIT_INTERVAL = 10L;
+	/** Segment file name suffix. */
+	public static final String SEGMENT_SUFFIX = ".journal";
+
+	/** Record header size: length, CRC, and sequence. */
+	private static final int HEADER_SIZE = 16;
+	/** Offset of the checked part of a record: everything after length and CRC. */
+	private static final int CHECKED_OFFSET = 8;
+	/** Digits in a segment file name. */
+	private static final int NAME_DIGITS = 20;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/** Journal directory. */
+	private File directory;
+	/** Message codec. */
+	private MessageCodec codec;
+	/** Segment size in bytes. */
+	private int segmentSize;
+	/** Commit interval in milliseconds. */
+	private long commitInterval;
+
+	/** Mutex for appends. */
+	private Object JOURNAL_MUTEX = new Object();
+	/** Mutex for commit waiters. */
+	private Object COMMIT_MUTEX = new Object();
+	/** Mutex for forcing segments, so commits happen one at a time. */
+	private Object FORCE_MUTEX = new Object();
+
+	/** Current segment. Guarded by JOURNAL_MUTEX. */
+	private Segment current;
+	/** Full segments that are not forced yet, oldest first. Guarded by JOURNAL_MUTEX. */
+	private Queue<Segment> rolled;
+	/** Sequence of the next appended message. Guarded by JOURNAL_MUTEX. */
+	private long nextSequence;
+	/** Every message before this sequence is on disk. Guarded by COMMIT_MUTEX. */
+	private volatile long committedSequence;
+	/** Set if a waiter wants a commit now. Guarded by COMMIT_MUTEX. */
+	private boolean commitRequested;
+	/** Set on close. */
+	private volatile boolean closed;
+	/** Checksum for appends. Guarded by JOURNAL_MUTEX. */
+	private CRC32 crc;
+	/** Encoded message type names. Guarded by JOURNAL_MUTEX. */
+	private HashMap<String, byte[]> typeNames;
+	/** Commit thread. */
+	private CommitThread commitThread;
+
+	/**
+	 * Opens or creates a journal with the default segment size and commit interval.
+	 * @param directory the directory for the segment files, created if it does not exist.
+	 * @param codec the codec for message contents.
+	 * @throws IOException if the directory or last segment can't be opened.
+	 */
+	public MessageJournal(File directory, MessageCodec codec) throws IOException
+	{
+		this(directory, codec, DEFAULT_SEGMENT_SIZE, DEFAULT_COMMIT_INTERVAL);
+	}
+
+	/**
+	 * Opens or creates a journal.
+	 * If the directory has segments already, new messages are appended after the last valid one.
+	 * @param directory the directory for the segment files, created if it does not exist.
+	 * @param codec the codec for message contents.
+	 * @param segmentSize the size of each segment file in bytes. The largest message must fit in one.
+	 * @param commitIntervalMillis the time between commits, in milliseconds.
+	 * @throws IllegalArgumentException if segmentSize is too small, or commitIntervalMillis is less than 1.
+	 * @throws IOException if the directory or last segment can't be opened.
+	 */
+	public MessageJournal(File directory, MessageCodec codec, int segmentSize, long commitIntervalMillis) throws IOException
+	{
+		if (segmentSize < HEADER_SIZE * 4)
+			throw new IllegalArgumentException("Segment size is too small.");
+		if (commitIntervalMillis < 1L)
+			throw new IllegalArgumentException("Commit interval must be 1 or greater.");
+
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create journal directory: " + directory.getPath());
+
+		this.directory = directory;
+		this.codec = codec;
+		this.segmentSize = segmentSize;
+		this.commitInterval = commitIntervalMillis;
+		this.crc = new CRC32();
+		this.typeNames = new HashMap<String, byte[]>();
+		this.rolled = new Queue<Segment>();
+		this.closed = false;
+		this.commitRequested = false;
+
+		long[] segments = listSegments();
+		if (segments.length == 0)
+		{
+			current = openSegment(0L);
+			nextSequence = 0L;
+		}
+		else
+		{
+			current = openSegment(segments[segments.length - 1]);
+			nextSequence = recover(current);
+		}
+		committedSequence = nextSequence;
+
+		commitThread = new CommitThread();
+		commitThread.start();
+	}
+
+	/**
+	 * Returns the journal directory.
+	 */
+	public File getDirectory()
+	{
+		return directory;
+	}
+
+	/**
+	 * Returns the message codec.
+	 */
+	public MessageCodec getCodec()
+	{
+		return codec;
+	}
+
+	/**
+	 * Returns the sequence number that the next appended message will get.
+	 */
+	public long getNextSequence()
+	{
+		synchronized (JOURNAL_MUTEX)
+		{
+			return nextSequence;
+		}
+	}
+
+	/**
+	 * Returns the sequence number after the last message known to be on disk.
+	 */
+	public long getCommittedSequence()
+	{
+		return committedSequence;
+	}
+
+	/**
+	 * Returns true if this journal was closed.
+	 */
+	public boolean isClosed()
+	{
+		return closed;
+	}
+
+	/**
+	 * Appends a message to this journal.
+	 * This is called by {@link MessageBroadcaster} on publish.
+	 * @param slot the message to append.
+	 * @return the message's sequence number.
+	 * @throws IllegalStateException if this journal is closed.
+	 * @throws IllegalArgumentException if the message does not fit in a segment, or its contents can't be encoded.
+	 * @throws UncheckedIOException if a new segment could not be created.
+	 */
+	long append(MessageSlot slot)
+	{
+		synchronized (JOURNAL_MUTEX)
+		{
+			if (closed)
+				throw new IllegalStateException("Journal is closed.");
+
+			byte[] type = typeNames.get(slot.messageType);
+			if (type == null)
+			{
+				type = slot.messageType.getBytes(UTF_8);
+				if (type.length > 0xffff)
+					throw new IllegalArgumentException("Message type is too long.");
+				typeNames.put(slot.messageType, type);
+			}
+
+			if (!write(current, type, slot))
+			{
+				roll();
+				if (!write(current, type, slot))
+					throw new IllegalArgumentException("Message does not fit in a journal segment.");
+			}
+			return nextSequence++;
+		}
+	}
+
+	/**
+	 * Forces every message appended so far to disk.
+	 * This is done by the commit thread every commit interval, so it does not usually need to be called.
+	 */
+	public void commit()
+	{
+		synchronized (FORCE_MUTEX)
+		{
+			Queue<Segment> full = null;
+			Segment segment;
+			long sequence;
+			synchronized (JOURNAL_MUTEX)
+			{
+				if (!rolled.isEmpty())
+				{
+					full = rolled;
+					rolled = new Queue<Segment>();
+				}
+				segment = current;
+				sequence = nextSequence;
+			}
+			if (sequence <= committedSequence)
+				return;
+
+			// forced outside of the append lock, so publishers never wait on the disk.
+			if (full != null) for (Segment s : full)
+				s.buffer.force();
+			segment.buffer.force();
+			setCommitted(sequence);
+		}
+	}
+
+	/**
+	 * Waits until a message is on disk, asking the commit thread to commit right away.
+	 * Every message appended before the commit goes to disk with it.
+	 * @param sequence the message sequence number.
+	 * @throws InterruptedException if the current thread is interrupted while waiting.
+	 * @throws IllegalStateException if this journal was closed before the message was committed.
+	 */
+	public void awaitCommit(long sequence) throws InterruptedException
+	{
+		synchronized (COMMIT_MUTEX)
+		{
+			while (committedSequence <= sequence)
+			{
+				if (closed)
+					throw new IllegalStateException("Journal is closed.");
+				commitRequested = true;
+				COMMIT_MUTEX.notifyAll();
+				COMMIT_MUTEX.wait();
+			}
+		}
+	}
+
+	/**
+	 * Broadcasts every journaled message from a sequence number on, in order.
+	 * Replayed messages are not journaled again. This is meant to be called on startup, before
+	 * anything else is broadcast.
+	 * @param fromSequence the sequence number of the first message to replay.
+	 * @param broadcaster the broadcaster to publish the messages to.
+	 * @return the sequence number after the last replayed message, or fromSequence if nothing was replayed.
+	 * @throws IOException if a segment could not be read, or a message could not be decoded.
+	 */
+	public long replay(long fromSequence, MessageBroadcaster broadcaster) throws IOException
+	{
+		long[] segments = listSegments();
+		int first = 0;
+		for (int i = 0; i < segments.length; i++)
+			if (segments[i] <= fromSequence)
+				first = i;
+
+		CRC32 check = new CRC32();
+		long out = fromSequence;
+		for (int i = first; i < segments.length; i++)
+		{
+			MappedByteBuffer buffer = map(segments[i], false);
+			long sequence = segments[i];
+			int length;
+			while ((length = checkRecord(buffer, sequence, check)) >= 0)
+			{
+				int start = buffer.position();
+				int end = start + CHECKED_OFFSET + length;
+				if (sequence >= fromSequence)
+				{
+					replay(buffer, start, end, sequence, broadcaster);
+					out = sequence + 1;
+				}
+				buffer.position(end);
+				sequence++;
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Deletes the segments that only hold messages before a sequence number.
+	 * The current segment is never deleted.
+	 * @param sequence the sequence number.
+	 * @return the amount of segments deleted.
+	 */
+	public int deleteBefore(long sequence)
+	{
+		long currentFirst;
+		synchronized (JOURNAL_MUTEX)
+		{
+			currentFirst = current.firstSequence;
+		}
+
+		long[] segments = listSegments();
+		int out = 0;
+		for (int i = 0; i < segments.length - 1; i++)
+		{
+			// a segment ends where the next one starts.
+			if (segments[i + 1] <= sequence && segments[i] < currentFirst && getSegmentFile(segments[i]).delete())
+				out++;
+		}
+		return out;
+	}
+
+	/**
+	 * Commits everything appended so far, and closes this journal.
+	 * Messages published to a broadcaster using this journal after this will fail,
+	 * so the broadcaster should be shut down first. Does nothing if already closed.
+	 */
+	public void close()
+	{
+		synchronized (JOURNAL_MUTEX)
+		{
+			if (closed)
+				return;
+			closed = true;
+		}
+		commit();
+		synchronized (COMMIT_MUTEX)
+		{
+			COMMIT_MUTEX.notifyAll();
+		}
+	}
+
+	/**
+	 * Writes a record at the end of a segment.
+	 * Must be called with JOURNAL_MUTEX held.
+	 * @return true if written, false if it did not fit.
+	 */
+	private boolean write(Segment segment, byte[] type, MessageSlot slot)
+	{
+		MappedByteBuffer buffer = segment.buffer;
+		int start = buffer.position();
+		if (buffer.remaining() < HEADER_SIZE + 2 + type.length)
+			return false;
+
+		buffer.position(start + CHECKED_OFFSET);
+		buffer.putLong(nextSequence);
+		buffer.putShort((short)type.length);
+		buffer.put(type);
+		try {
+			codec.encodeKey(slot.orderingKey, buffer);
+			codec.encode(slot, buffer);
+		} catch (BufferOverflowException e) {
+			buffer.position(start);
+			return false;
+		} catch (RuntimeException e) {
+			buffer.position(start);
+			throw e;
+		}
+		int end = buffer.position();
+
+		buffer.position(start + CHECKED_OFFSET);
+		buffer.limit(end);
+		crc.reset();
+		crc.update(buffer);
+		buffer.limit(buffer.capacity());
+		buffer.putInt(start + 4, (int)crc.getValue());
+		// length goes last, so a record is not valid until it is complete.
+		buffer.putInt(start, end - start - CHECKED_OFFSET);
+		buffer.position(end);
+		return true;
+	}
+
+	/**
+	 * Starts a new segment, and asks the commit thread to force the full one.
+	 * Must be called with JOURNAL_MUTEX held.
+	 */
+	private void roll()
+	{
+		Segment full = current;
+		try {
+			current = openSegment(nextSequence);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		rolled.enqueue(full);
+		synchronized (COMMIT_MUTEX)
+		{
+			commitRequested = true;
+			COMMIT_MUTEX.notifyAll();
+		}
+	}
+
+	/**
+	 * Raises the committed sequence, and wakes up waiters.
+	 */
+	private void setCommitted(long sequence)
+	{
+		synchronized (COMMIT_MUTEX)
+		{
+			if (sequence > committedSequence)
+				committedSequence = sequence;
+			COMMIT_MUTEX.notifyAll();
+		}
+	}
+
+	/**
+	 * Finds the end of the valid records in a segment, and clears anything after it.
+	 * @return the sequence number after the last valid record.
+	 */
+	private long recover(Segment segment)
+	{
+		MappedByteBuffer buffer = segment.buffer;
+		long sequence = segment.firstSequence;
+		int length;
+		while ((length = checkRecord(buffer, sequence, crc)) >= 0)
+		{
+			buffer.position(buffer.position() + CHECKED_OFFSET + length);
+			sequence++;
+		}
+
+		// clear what is left of a partly written record, only touching pages that need it.
+		for (int i = buffer.position(); i < buffer.limit(); i++)
+			if (buffer.get(i) != 0)
+				buffer.put(i, (byte)0);
+		return sequence;
+	}
+
+	/**
+	 * Checks the record at a buffer's position.
+	 * @return the length of the checked part of the record, or -1 if there is no valid record with the expected sequence.
+	 */
+	private static int checkRecord(ByteBuffer buffer, long sequence, CRC32 check)
+	{
+		int start = buffer.position();
+		int limit = buffer.limit();
+		if (limit - start < HEADER_SIZE + 2)
+			return -1;
+
+		int length = buffer.getInt(start);
+		if (length < HEADER_SIZE - CHECKED_OFFSET + 2 || length > limit - start - CHECKED_OFFSET)
+			return -1;
+		if (buffer.getLong(start + CHECKED_OFFSET) != sequence)
+			return -1;
+
+		buffer.position(start + CHECKED_OFFSET);
+		buffer.limit(start + CHECKED_OFFSET + length);
+		check.reset();
+		check.update(buffer);
+		buffer.limit(limit);
+		buffer.position(start);
+		return (int)check.getValue() == buffer.getInt(start + 4) ? length : -1;
+	}
+
+	/**
+	 * Decodes a checked record and publishes it.
+	 */
+	private void replay(MappedByteBuffer buffer, int start, int end, long sequence, MessageBroadcaster broadcaster) throws IOException
+	{
+		int typeLength = buffer.getShort(start + HEADER_SIZE) & 0xffff;
+		if (start + HEADER_SIZE + 2 + typeLength > end)
+			throw new IOException("Bad journal record " + sequence + ".");
+		byte[] type = new byte[typeLength];
+		buffer.position(start + HEADER_SIZE + 2);
+		buffer.get(type);
+
+		Object orderingKey;
+		buffer.limit(end);
+		try {
+			orderingKey = codec.decodeKey(buffer);
+		} catch (RuntimeException e) {
+			buffer.limit(buffer.capacity());
+			throw new IOException("Could not decode journal record " + sequence + ".", e);
+		}
+
+		MessageSlot slot = broadcaster.claim(orderingKey, new String(type, UTF_8));
+		slot.replayed = true;
+		slot.sequence = sequence;
+		try {
+			codec.decode(buffer, slot);
+		} catch (RuntimeException e) {
+			// the slot is claimed, so it has to be published or its dispatcher stalls.
+			slot.skipped = true;
+			broadcaster.publish(slot);
+			throw new IOException("Could not decode journal record " + sequence + ".", e);
+		} finally {
+			buffer.limit(buffer.capacity());
+		}
+		broadcaster.publish(slot);
+	}
+
+	/**
+	 * Lists the first sequence numbers of the segments in the directory, in order.
+	 */
+	private long[] listSegments()
+	{
+		String[] names = directory.list();
+		if (names == null)
+			return new long[0];
+
+		long[] out = new long[names.length];
+		int count = 0;
+		for (String name : names)
+		{
+			if (name.length() != NAME_DIGITS + SEGMENT_SUFFIX.length() || !name.endsWith(SEGMENT_SUFFIX))
+				continue;
+			try {
+				out[count++] = Long.parseLong(name.substring(0, NAME_DIGITS));
+			} catch (NumberFormatException e) {
+				count--;
+			}
+		}
+		out = Arrays.copyOf(out, count);
+		Arrays.sort(out);
+		return out;
+	}
+
+	/**
+	 * Returns the file for a segment.
+	 */
+	private File getSegmentFile(long firstSequence)
+	{
+		return new File(directory, String.format("%0" + NAME_DIGITS + "d", firstSequence) + SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * Opens or creates a segment for writing.
+	 */
+	private Segment openSegment(long firstSequence) throws IOException
+	{
+		return new Segment(firstSequence, map(firstSequence, true));
+	}
+
+	/**
+	 * Maps a segment file. Files being written are grown to the segment size.
+	 */
+	private MappedByteBuffer map(long firstSequence, boolean write) throws IOException
+	{
+		try (RandomAccessFile file = new RandomAccessFile(getSegmentFile(firstSequence), write ? "rw" : "r"))
+		{
+			if (write && file.length() < segmentSize)
+				file.setLength(segmentSize);
+			// the mapping stays valid after the file is closed.
+			return file.getChannel().map(write ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0L, file.length());
+		}
+	}
+
+	/**
+	 * A mapped segment.
+	 */
+	private static class Segment
+	{
+		/** Sequence number of the first record. */
+		private long firstSequence;
+		/** Mapped file contents. */
+		private MappedByteBuffer buffer;
+
+		Segment(long firstSequence, MappedByteBuffer buffer)
+		{
+			this.firstSequence = firstSequence;
+			this.buffer = buffer;
+		}
+	}
+
+	/**
+	 * The thread that commits every commit interval, or when asked.
+	 */
+	private class CommitThread extends Thread
+	{
+		CommitThread()
+		{
+			super("MessageJournal-Commit");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run()
+		{
+			while (!closed)
+			{
+				synchronized (COMMIT_MUTEX)
+				{
+					if (!commitRequested && !closed)
+						try {COMMIT_MUTEX.wait(commitInterval);} catch (InterruptedException ex) {}
+					commitRequested = false;
+				}
+				try {
+					commit();
+				} catch (RuntimeException e) {
+					getUncaughtExceptionHandler().uncaughtException(this, e);
+				}
+			}
+		}
+	}
+
+}
@@ -24,6 +24,7 @@ public interface MessageListener
 	/**
 	 * Returns the list of message types that this object responds to.
 	 * It's a good idea do this in order to keep things running efficiently.
+	 * Since 2.7.0, these can also be patterns, like <code>order.*</code> or <code>order.**</code>.
 	 * @return a list of message types, or null or a blank array to mean "accepts all".
 	 */
 	public String[] getMessageTypes();
@@ -0,0 +1,356 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Black Rook Software
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.sync.message;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A reusable message, claimed from a {@link MessageBroadcaster}, filled in, and then published.
+ * <p>
+ * Besides the plain argument array passed to every {@link MessageListener}, a slot has
+ * {@value #FIELD_COUNT} typed fields each of <code>long</code>, <code>double</code>, <code>int</code>,
+ * and Object, which can be filled in without boxing or allocating anything, and read by
+ * {@link MessageSlotListener}s.
+ * <p>
+ * Slots are owned by their broadcaster, and are reused once they are delivered. A slot should only be
+ * touched between {@link MessageBroadcaster#claim(String)} and {@link MessageBroadcaster#publish(MessageSlot)}
+ * by the thread that claimed it, and after that, only by listeners while they are receiving it.
+ * @author Matthew Tropiano
+ * @since 2.7.0
+ */
+public final class MessageSlot
+{
+	/** Amount of fields of each type. */
+	public static final int FIELD_COUNT = 8;
+	/** Empty arguments. */
+	static final Object[] NO_ARGUMENTS = new Object[0];
+
+	/** The owning broadcaster. */
+	MessageBroadcaster broadcaster;
+	/** The index of the dispatcher this was claimed from. */
+	int dispatcherIndex;
+	/** Is this part of a dispatcher's ring? */
+	boolean pooled;
+	/** Set once published. Guarded by the dispatcher. */
+	boolean published;
+	/** Latch released on delivery, if someone is waiting for it. */
+	CountDownLatch completion;
+	/** Set if replayed from a journal, so it is not journaled again. */
+	boolean replayed;
+	/** Set if this should be released without being delivered. */
+	boolean skipped;
+	/** Set if claimed for a conflating type, and not queued yet. */
+	boolean detached;
+	/** Ordering key, or null if ordered by type. */
+	Object orderingKey;
+	/** Key for conflation, or null if not conflated. */
+	Object conflationKey;
+	/** Journal sequence number, or -1 if not journaled. */
+	long sequence;
+	/** Sequence numbers of the journaled messages this one replaced, by conflation. */
+	private long[] superseded;
+	/** Amount of superseded sequence numbers. */
+	private int supersededCount;
+	/** Set if this was not published in time, and must never be used again. */
+	boolean abandoned;
+
+	/** The message type. */
+	String messageType;
+	/** The message type ID. */
+	int messageTypeId;
+	/** The plain arguments. */
+	Object[] arguments;
+	/** Long fields. */
+	private long[] longs;
+	/** Double fields. */
+	private double[] doubles;
+	/** Int fields. */
+	private int[] ints;
+	/** Object fields. */
+	private Object[] objects;
+
+	MessageSlot(MessageBroadcaster broadcaster, int dispatcherIndex, boolean pooled)
+	{
+		this.broadcaster = broadcaster;
+		this.dispatcherIndex = dispatcherIndex;
+		this.pooled = pooled;
+		this.published = false;
+		this.completion = null;
+		this.replayed = false;
+		this.skipped = false;
+		this.detached = false;
+		this.orderingKey = null;
+		this.conflationKey = null;
+		this.sequence = -1L;
+		this.superseded = null;
+		this.supersededCount = 0;
+		this.abandoned = false;
+		this.messageType = null;
+		this.messageTypeId = -1;
+		this.arguments = NO_ARGUMENTS;
+		this.longs = new long[FIELD_COUNT];
+		this.doubles = new double[FIELD_COUNT];
+		this.ints = new int[FIELD_COUNT];
+		this.objects = new Object[FIELD_COUNT];
+	}
+
+	/**
+	 * Clears this slot for reuse.
+	 */
+	void clear()
+	{
+		published = false;
+		completion = null;
+		replayed = false;
+		skipped = false;
+		detached = false;
+		orderingKey = null;
+		conflationKey = null;
+		sequence = -1L;
+		supersededCount = 0;
+		messageType = null;
+		messageTypeId = -1;
+		arguments = NO_ARGUMENTS;
+		Arrays.fill(longs, 0L);
+		Arrays.fill(doubles, 0.0);
+		Arrays.fill(ints, 0);
+		Arrays.fill(objects, null);
+	}
+
+	/**
+	 * Copies the message of another slot into this one: its type, keys, sequence, superseded sequences,
+	 * arguments, and fields, and whether it was replayed, since that goes with the message rather than the slot.
+	 */
+	void copyFrom(MessageSlot slot)
+	{
+		supersededCount = 0;
+		addSuperseded(slot);
+		copyMessage(slot);
+	}
+
+	/**
+	 * Replaces the message in this slot with the message of another slot, by conflation.
+	 * This slot's own sequence number, and the ones it already replaced, are kept as superseded,
+	 * along with the ones the other slot replaced.
+	 */
+	void supersede(MessageSlot slot)
+	{
+		if (sequence >= 0L)
+			addSuperseded(sequence);
+		addSuperseded(slot);
+		copyMessage(slot);
+	}
+
+	// Adds the superseded sequence numbers of another slot.
+	private void addSuperseded(MessageSlot slot)
+	{
+		for (int i = 0; i < slot.supersededCount; i++)
+			addSuperseded(slot.superseded[i]);
+	}
+
+	// Adds a superseded sequence number.
+	private void addSuperseded(long sequence)
+	{
+		if (superseded == null)
+			superseded = new long[4];
+		else if (supersededCount == superseded.length)
+			superseded = Arrays.copyOf(superseded, superseded.length * 2);
+		superseded[supersededCount++] = sequence;
+	}
+
+	// Copies the message itself.
+	private void copyMessage(MessageSlot slot)
+	{
+		messageType = slot.messageType;
+		messageTypeId = slot.messageTypeId;
+		orderingKey = slot.orderingKey;
+		conflationKey = slot.conflationKey;
+		sequence = slot.sequence;
+		replayed = slot.replayed;
+		arguments = slot.arguments;
+		System.arraycopy(slot.longs, 0, longs, 0, FIELD_COUNT);
+		System.arraycopy(slot.doubles, 0, doubles, 0, FIELD_COUNT);
+		System.arraycopy(slot.ints, 0, ints, 0, FIELD_COUNT);
+		System.arraycopy(slot.objects, 0, objects, 0, FIELD_COUNT);
+	}
+
+	/**
+	 * Returns the message type.
+	 */
+	public String getMessageType()
+	{
+		return messageType;
+	}
+
+	/**
+	 * Returns the message type ID, or -1 if the type was not registered when this was claimed.
+	 * @see MessageBroadcaster#registerMessageType(String)
+	 */
+	public int getMessageTypeId()
+	{
+		return messageTypeId;
+	}
+
+	/**
+	 * Returns the ordering key this was claimed with, or null if it is ordered by type.
+	 * @see MessageBroadcaster#claim(Object, String)
+	 */
+	public Object getOrderingKey()
+	{
+		return orderingKey;
+	}
+
+	/**
+	 * Returns the journal sequence number of this message, or -1 if it was not journaled.
+	 * This is set on publish, or on replay for replayed messages, so a listener can read it while
+	 * receiving the message, to keep track of what was delivered.
+	 * @see MessageJournal
+	 */
+	public long getSequence()
+	{
+		return sequence;
+	}
+
+	/**
+	 * Returns how many journaled messages this one replaced, by conflation, before it was delivered.
+	 * Their sequence numbers are handled once this message is, and are available through
+	 * {@link #getSupersededSequence(int)}. This is 0 if nothing was replaced, or the messages were not journaled.
+	 * @see MessageBroadcaster#setConflating(String, boolean)
+	 * @see MessageJournal
+	 */
+	public int getSupersededCount()
+	{
+		return supersededCount;
+	}
+
+	/**
+	 * Returns the sequence number of a journaled message that this one replaced, by conflation.
+	 * @param index the index, from 0 to {@link #getSupersededCount()} - 1.
+	 * @throws IndexOutOfBoundsException if the index is out of range.
+	 */
+	public long getSupersededSequence(int index)
+	{
+		if (index < 0 || index >= supersededCount)
+			throw new IndexOutOfBoundsException("Index " + index + " out of range: " + supersededCount);
+		return superseded[index];
+	}
+
+	/**
+	 * Returns true if this message was replayed from a journal, rather than published since startup.
+	 * @see MessageJournal#replay(long, MessageBroadcaster)
+	 */
+	public boolean isReplayed()
+	{
+		return replayed;
+	}
+
+	/**
+	 * Returns the plain message arguments, which are empty unless they were set.
+	 */
+	public Object[] getArguments()
+	{
+		return arguments;
+	}
+
+	/**
+	 * Sets the plain message arguments, passed to listeners that are not {@link MessageSlotListener}s.
+	 * @param arguments the arguments.
+	 * @return itself.
+	 */
+	public MessageSlot setArguments(Object ... arguments)
+	{
+		this.arguments = arguments != null ? arguments : NO_ARGUMENTS;
+		return this;
+	}
+
+	/**
+	 * Returns a long field.
+	 * @param index the field index, from 0 to {@link #FIELD_COUNT} - 1.
+	 */
+	public long getLong(int index)
+	{
+		return longs[index];
+	}
+
+	/**
+	 * Sets a long field.
+	 * @param index the field index, from 0 to {@link #FIELD_COUNT} - 1.
+	 * @param value the value.
+	 * @return itself.
+	 */
+	public MessageSlot setLong(int index, long value)
+	{
+		longs[index] = value;
+		return this;
+	}
+
+	/**
+	 * Returns a double field.
+	 * @param index the field index, from 0 to {@link #FIELD_COUNT} - 1.
+	 */
+	public double getDouble(int index)
+	{
+		return doubles[index];
+	}
+
+	/**
+	 * Sets a double field.
+	 * @param index the field index, from 0 to {@link #FIELD_COUNT} - 1.
+	 * @param value the value.
+	 * @return itself.
+	 */
+	public MessageSlot setDouble(int index, double value)
+	{
+		doubles[index] = value;
+		return this;
+	}
+
+	/**
+	 * Returns an int field.
+	 * @param index the field index, from 0 to {@link #FIELD_COUNT} - 1.
+	 */
+	public int getInt(int index)
+	{
+		return ints[index];
+	}
+
+	/**
+	 * Sets an int field.
+	 * @param index the field index, from 0 to {@link #FIELD_COUNT} - 1.
+	 * @param value the value.
+	 * @return itself.
+	 */
+	public MessageSlot setInt(int index, int value)
+	{
+		ints[index] = value;
+		return this;
+	}
+
+	/**
+	 * Returns an Object field.
+	 * @param index the field index, from 0 to {@link #FIELD_COUNT} - 1.
+	 */
+	public Object getObject(int index)
+	{
+		return objects[index];
+	}
+
+	/**
+	 * Sets an Object field.
+	 * @param index the field index, from 0 to {@link #FIELD_COUNT} - 1.
+	 * @param value the value.
+	 * @return itself.
+	 */
+	public MessageSlot setObject(int index, Object value)
+	{
+		objects[index] = value;
+		return this;
+	}
+
+}
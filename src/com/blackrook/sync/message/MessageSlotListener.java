@@ -0,0 +1,26 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Black Rook Software
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.sync.message;
+
+/**
+ * A {@link MessageListener} that receives whole {@link MessageSlot}s, including their typed fields.
+ * A {@link MessageBroadcaster} calls {@link #onMessageReceive(MessageSlot)} on these instead of
+ * {@link #onMessageReceive(String, Object...)}.
+ * @author Matthew Tropiano
+ * @since 2.7.0
+ */
+public interface MessageSlotListener extends MessageListener
+{
+	/**
+	 * Called when a message gets sent to this object.
+	 * The slot is reused after every listener receives it, so it must not be kept.
+	 * @param slot the message.
+	 */
+	public void onMessageReceive(MessageSlot slot);
+
+}
@@ -0,0 +1,188 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Black Rook Software
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.sync.message;
+
+import com.blackrook.commons.hash.Hash;
+import com.blackrook.commons.hash.HashMap;
+import com.blackrook.commons.linkedlist.Queue;
+
+/**
+ * A trie of message type patterns, for finding the listeners that match a message type.
+ * <p>
+ * Types and patterns are split into segments on <code>'.'</code>. In a pattern, a <code>*</code>
+ * segment matches exactly one segment, and a <code>**</code> segment matches any amount of segments,
+ * including none. Every other segment only matches itself. For example, <code>order.*</code> matches
+ * <code>order.new</code> but not <code>order</code> or <code>order.new.rush</code>, and
+ * <code>order.**</code> matches all three.
+ * <p>
+ * This class is not thread-safe, but can be matched against from any amount of threads once it stops changing.
+ * @author Matthew Tropiano
+ * @since 2.7.0
+ */
+class MessageTopicTrie
+{
+	/** Segment separator. */
+	static final char SEPARATOR = '.';
+	/** Single segment wildcard. */
+	static final String WILDCARD = "*";
+	/** Multiple segment wildcard. */
+	static final String MULTI_WILDCARD = "**";
+
+	/** Root node. */
+	private Node root;
+
+	MessageTopicTrie()
+	{
+		this.root = new Node();
+	}
+
+	/**
+	 * Adds a listener for a pattern.
+	 * @param pattern the pattern.
+	 * @param listener the listener.
+	 */
+	void add(String pattern, MessageListener listener)
+	{
+		Node node = root;
+		for (String segment : split(pattern))
+		{
+			Node next;
+			if (WILDCARD.equals(segment))
+			{
+				if ((next = node.wildcard) == null)
+					next = node.wildcard = new Node();
+			}
+			else if (MULTI_WILDCARD.equals(segment))
+			{
+				if ((next = node.multiWildcard) == null)
+					next = node.multiWildcard = new Node();
+			}
+			else
+			{
+				if ((next = node.children.get(segment)) == null)
+					node.children.put(segment, next = new Node());
+			}
+			node = next;
+		}
+		node.listeners.enqueue(listener);
+	}
+
+	/**
+	 * Finds the listeners for every pattern that matches a message type.
+	 * Each listener is added once, even if it matches more than once.
+	 * @param messageType the message type.
+	 * @param seen the listeners already found, which are skipped and added to.
+	 * @param out the output queue.
+	 */
+	void match(String messageType, Hash<MessageListener> seen, Queue<MessageListener> out)
+	{
+		match(root, split(messageType), 0, seen, out);
+	}
+
+	/**
+	 * Returns true if any pattern matches a message type.
+	 * @param messageType the message type.
+	 */
+	boolean matches(String messageType)
+	{
+		return matches(root, split(messageType), 0);
+	}
+
+	private static boolean matches(Node node, String[] segments, int index)
+	{
+		if (node.multiWildcard != null)
+		{
+			for (int i = index; i <= segments.length; i++)
+				if (matches(node.multiWildcard, segments, i))
+					return true;
+		}
+
+		if (index == segments.length)
+			return !node.listeners.isEmpty();
+
+		Node next = node.children.get(segments[index]);
+		if (next != null && matches(next, segments, index + 1))
+			return true;
+		return node.wildcard != null && matches(node.wildcard, segments, index + 1);
+	}
+
+	private static void match(Node node, String[] segments, int index, Hash<MessageListener> seen, Queue<MessageListener> out)
+	{
+		if (node.multiWildcard != null)
+		{
+			for (int i = index; i <= segments.length; i++)
+				match(node.multiWildcard, segments, i, seen, out);
+		}
+
+		if (index == segments.length)
+		{
+			for (MessageListener listener : node.listeners)
+			{
+				if (!seen.contains(listener))
+				{
+					seen.put(listener);
+					out.enqueue(listener);
+				}
+			}
+			return;
+		}
+
+		Node next = node.children.get(segments[index]);
+		if (next != null)
+			match(next, segments, index + 1, seen, out);
+		if (node.wildcard != null)
+			match(node.wildcard, segments, index + 1, seen, out);
+	}
+
+	/**
+	 * Splits a type or pattern into segments, keeping empty ones.
+	 */
+	private static String[] split(String s)
+	{
+		int count = 1;
+		for (int i = 0; i < s.length(); i++)
+			if (s.charAt(i) == SEPARATOR)
+				count++;
+
+		String[] out = new String[count];
+		int start = 0;
+		for (int i = 0; i < count; i++)
+		{
+			int end = s.indexOf(SEPARATOR, start);
+			if (end < 0)
+				end = s.length();
+			out[i] = s.substring(start, end);
+			start = end + 1;
+		}
+		return out;
+	}
+
+	/**
+	 * A single trie node.
+	 */
+	private static class Node
+	{
+		/** Exact segment children. */
+		private HashMap<String, Node> children;
+		/** Single segment wildcard child. */
+		private Node wildcard;
+		/** Multiple segment wildcard child. */
+		private Node multiWildcard;
+		/** Listeners for patterns that end here. */
+		private Queue<MessageListener> listeners;
+
+		Node()
+		{
+			this.children = new HashMap<String, Node>(4);
+			this.wildcard = null;
+			this.multiWildcard = null;
+			this.listeners = new Queue<MessageListener>();
+		}
+	}
+
+}
@@ -0,0 +1,213 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Black Rook Software
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.sync.message;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A message codec for plain values.
+ * <p>
+ * Writes the plain arguments and every typed field of a slot. Ordering keys, arguments, and Object fields can be
+ * null, Booleans, Bytes, Shorts, Integers, Longs, Floats, Doubles, Strings, or byte arrays.
+ * Typed fields that are zero (or null) take up no space.
+ * @author Matthew Tropiano
+ * @since 2.7.0
+ */
+public class SimpleMessageCodec implements MessageCodec
+{
+	/** Shared instance. */
+	public static final SimpleMessageCodec INSTANCE = new SimpleMessageCodec();
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final byte TYPE_NULL = 0;
+	private static final byte TYPE_BOOLEAN = 1;
+	private static final byte TYPE_BYTE = 2;
+	private static final byte TYPE_SHORT = 3;
+	private static final byte TYPE_INT = 4;
+	private static final byte TYPE_LONG = 5;
+	private static final byte TYPE_FLOAT = 6;
+	private static final byte TYPE_DOUBLE = 7;
+	private static final byte TYPE_STRING = 8;
+	private static final byte TYPE_BYTES = 9;
+
+	@Override
+	public void encodeKey(Object orderingKey, ByteBuffer out)
+	{
+		writeValue(orderingKey, out);
+	}
+
+	@Override
+	public Object decodeKey(ByteBuffer in)
+	{
+		return readValue(in);
+	}
+
+	@Override
+	public void encode(MessageSlot slot, ByteBuffer out)
+	{
+		Object[] arguments = slot.getArguments();
+		out.putInt(arguments.length);
+		for (int i = 0; i < arguments.length; i++)
+			writeValue(arguments[i], out);
+
+		int mask = 0;
+		for (int i = 0; i < MessageSlot.FIELD_COUNT; i++)
+			if (slot.getLong(i) != 0L)
+				mask |= 1 << i;
+		out.put((byte)mask);
+		for (int i = 0; i < MessageSlot.FIELD_COUNT; i++)
+			if ((mask & (1 << i)) != 0)
+				out.putLong(slot.getLong(i));
+
+		mask = 0;
+		for (int i = 0; i < MessageSlot.FIELD_COUNT; i++)
+			if (Double.doubleToRawLongBits(slot.getDouble(i)) != 0L)
+				mask |= 1 << i;
+		out.put((byte)mask);
+		for (int i = 0; i < MessageSlot.FIELD_COUNT; i++)
+			if ((mask & (1 << i)) != 0)
+				out.putDouble(slot.getDouble(i));
+
+		mask = 0;
+		for (int i = 0; i < MessageSlot.FIELD_COUNT; i++)
+			if (slot.getInt(i) != 0)
+				mask |= 1 << i;
+		out.put((byte)mask);
+		for (int i = 0; i < MessageSlot.FIELD_COUNT; i++)
+			if ((mask & (1 << i)) != 0)
+				out.putInt(slot.getInt(i));
+
+		mask = 0;
+		for (int i = 0; i < MessageSlot.FIELD_COUNT; i++)
+			if (slot.getObject(i) != null)
+				mask |= 1 << i;
+		out.put((byte)mask);
+		for (int i = 0; i < MessageSlot.FIELD_COUNT; i++)
+			if ((mask & (1 << i)) != 0)
+				writeValue(slot.getObject(i), out);
+	}
+
+	@Override
+	public void decode(ByteBuffer in, MessageSlot slot)
+	{
+		int count = in.getInt();
+		if (count < 0 || count > in.remaining())
+			throw new IllegalArgumentException("Bad argument count: " + count);
+		if (count > 0)
+		{
+			Object[] arguments = new Object[count];
+			for (int i = 0; i < count; i++)
+				arguments[i] = readValue(in);
+			slot.setArguments(arguments);
+		}
+
+		int mask = in.get() & 0xff;
+		for (int i = 0; i < MessageSlot.FIELD_COUNT; i++)
+			if ((mask & (1 << i)) != 0)
+				slot.setLong(i, in.getLong());
+
+		mask = in.get() & 0xff;
+		for (int i = 0; i < MessageSlot.FIELD_COUNT; i++)
+			if ((mask & (1 << i)) != 0)
+				slot.setDouble(i, in.getDouble());
+
+		mask = in.get() & 0xff;
+		for (int i = 0; i < MessageSlot.FIELD_COUNT; i++)
+			if ((mask & (1 << i)) != 0)
+				slot.setInt(i, in.getInt());
+
+		mask = in.get() & 0xff;
+		for (int i = 0; i < MessageSlot.FIELD_COUNT; i++)
+			if ((mask & (1 << i)) != 0)
+				slot.setObject(i, readValue(in));
+	}
+
+	/**
+	 * Writes a single tagged value.
+	 */
+	private static void writeValue(Object value, ByteBuffer out)
+	{
+		if (value == null)
+			out.put(TYPE_NULL);
+		else if (value instanceof Boolean)
+			out.put(TYPE_BOOLEAN).put((byte)(((Boolean)value) ? 1 : 0));
+		else if (value instanceof Byte)
+			out.put(TYPE_BYTE).put((Byte)value);
+		else if (value instanceof Short)
+			out.put(TYPE_SHORT).putShort((Short)value);
+		else if (value instanceof Integer)
+			out.put(TYPE_INT).putInt((Integer)value);
+		else if (value instanceof Long)
+			out.put(TYPE_LONG).putLong((Long)value);
+		else if (value instanceof Float)
+			out.put(TYPE_FLOAT).putFloat((Float)value);
+		else if (value instanceof Double)
+			out.put(TYPE_DOUBLE).putDouble((Double)value);
+		else if (value instanceof String)
+		{
+			byte[] b = ((String)value).getBytes(UTF_8);
+			out.put(TYPE_STRING).putInt(b.length).put(b);
+		}
+		else if (value instanceof byte[])
+		{
+			byte[] b = (byte[])value;
+			out.put(TYPE_BYTES).putInt(b.length).put(b);
+		}
+		else
+			throw new IllegalArgumentException("Can't encode value of type " + value.getClass().getName());
+	}
+
+	/**
+	 * Reads a single tagged value.
+	 */
+	private static Object readValue(ByteBuffer in)
+	{
+		byte type = in.get();
+		switch (type)
+		{
+			case TYPE_NULL:
+				return null;
+			case TYPE_BOOLEAN:
+				return in.get() != 0;
+			case TYPE_BYTE:
+				return in.get();
+			case TYPE_SHORT:
+				return in.getShort();
+			case TYPE_INT:
+				return in.getInt();
+			case TYPE_LONG:
+				return in.getLong();
+			case TYPE_FLOAT:
+				return in.getFloat();
+			case TYPE_DOUBLE:
+				return in.getDouble();
+			case TYPE_STRING:
+				return new String(readBytes(in), UTF_8);
+			case TYPE_BYTES:
+				return readBytes(in);
+			default:
+				throw new IllegalArgumentException("Bad value type: " + type);
+		}
+	}
+
+	/**
+	 * Reads a length-prefixed byte array.
+	 */
+	private static byte[] readBytes(ByteBuffer in)
+	{
+		int length = in.getInt();
+		if (length < 0 || length > in.remaining())
+			throw new IllegalArgumentException("Bad length: " + length);
+		byte[] out = new byte[length];
+		in.get(out);
+		return out;
+	}
+
+}
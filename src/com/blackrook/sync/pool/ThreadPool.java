@@ -9,10 +9,15 @@ package com.blackrook.sync.pool;
 
 import com.blackrook.commons.linkedlist.Queue;
 import com.blackrook.commons.list.List;
+import com.blackrook.sync.Task;
+import com.blackrook.sync.TaskListener;
 
 /**
  * Thread pool object. This allocates a whole bunch of daemon 
  * threads, and makes them run a bunch of Runnables upon request.
+ * <p>If the runnables are {@link Task}s, tasks that are cancelled before they start
+ * are removed from the queue as soon as they are cancelled, and tasks that were started
+ * somewhere else while queued are dropped when they are taken off the queue, without running.
  * @author Matthew Tropiano
  */
 public class ThreadPool<T extends Runnable>
@@ -26,6 +31,8 @@ public class ThreadPool<T extends Runnable>
 	private List<ThreadPoolListener<T>> listeners;
 	/** The name of this ThreadPool. */
 	private String poolName;
+	/** Listener that removes cancelled tasks from the queue, and releases threads waiting on finished ones. */
+	private TaskListener cancelledTaskRemover;
 	
 	private static final String threadName = "Thread";
 	private static final String DEFAULT_POOL_NAME = "ThreadPool";
@@ -51,6 +58,21 @@ public class ThreadPool<T extends Runnable>
 		threads = new WorkerThread[numThreads];
 		queue = new Queue<T>();
 		listeners = new List<ThreadPoolListener<T>>(5);
+		cancelledTaskRemover = new TaskListener()
+		{
+			@Override
+			@SuppressWarnings("unchecked")
+			public void taskFinished(Task task)
+			{
+				if (task.isCancelled())
+					remove((T)task);
+				// it may have been run somewhere else while queued, and is dropped when dequeued.
+				else synchronized (task)
+				{
+					task.notifyAll();
+				}
+			}
+		};
 		for (int i = 0; i < numThreads; i++)
 		{
 			threads[i] = new WorkerThread(poolName+threadName+i);
@@ -115,6 +137,49 @@ public class ThreadPool<T extends Runnable>
 			fireTaskEnqueuedEvent(r);
 			queue.notify();
 		}
+		if (r instanceof Task)
+			((Task)r).addListener(cancelledTaskRemover);
+	}
+
+	/**
+	 * Takes the next queued runnable off the queue and runs it on the calling thread, 
+	 * the same way a pool thread would, if there is one.
+	 * Threads waiting on something can call this to help the pool along instead of blocking.
+	 * @return true if a runnable was run, false if the queue was empty.
+	 * @since 2.7.0
+	 */
+	public boolean runQueued()
+	{
+		T runnable;
+		synchronized (queue)
+		{
+			runnable = poll();
+		}
+		if (runnable == null)
+			return false;
+		runTask(runnable);
+		return true;
+	}
+
+	/**
+	 * Removes a runnable object from the queue, if it has not been assigned to a thread yet.
+	 * Threads waiting on it via {@link #executeAndWaitFor(Runnable)} are released.
+	 * @param r		the runnable to remove.
+	 * @return true if removed, false if it was not queued.
+	 * @since 2.7.0
+	 */
+	public boolean remove(T r)
+	{
+		boolean out;
+		synchronized (queue)
+		{
+			out = queue.remove(r);
+		}
+		if (out) synchronized (r)
+		{
+			r.notifyAll();
+		}
+		return out;
 	}
 
 	/**
@@ -197,6 +262,40 @@ public class ThreadPool<T extends Runnable>
 			listener.taskError(new ThreadPoolExceptionEvent<T>(r,e));
 	}
 	
+	/**
+	 * Takes the next runnable that can still be run off the queue, or returns null if there isn't one.
+	 * Tasks that are no longer ready were already run somewhere else, and are dropped.
+	 * Must be called with the queue locked.
+	 */
+	private T poll()
+	{
+		while (!queue.isEmpty())
+		{
+			T runnable = queue.dequeue();
+			if (!(runnable instanceof Task) || ((Task)runnable).isReady())
+				return runnable;
+		}
+		return null;
+	}
+	
+	/**
+	 * Runs a runnable taken off the queue, and fires its events.
+	 */
+	private void runTask(T runnable)
+	{
+		try {
+			fireTaskStartedEvent(runnable);
+			synchronized (runnable)
+			{
+				runnable.run();
+				runnable.notify();
+			}
+			fireTaskFinishedEvent(runnable);
+		} catch (RuntimeException e) {
+			fireTaskErrorEvent(runnable, e);
+		}
+	}
+	
 	/**
 	 * Worker threads for the pool.
 	 */
@@ -215,24 +314,12 @@ public class ThreadPool<T extends Runnable>
 			{
 				synchronized (queue)
 				{
-					while (queue.isEmpty())
+					while ((runnable = poll()) == null)
 					{
 						try {queue.wait();	} catch (InterruptedException ex) {}
 					}
-					runnable = queue.dequeue();
-				}
-				
-				try {
-					fireTaskStartedEvent(runnable);
-					synchronized (runnable)
-					{
-						runnable.run();
-						runnable.notify();
-					}
-					fireTaskFinishedEvent(runnable);
-				} catch (RuntimeException e) {
-					fireTaskErrorEvent(runnable, e);
 				}
+				runTask(runnable);
 			}
 		}
 	}
@@ -7,14 +7,34 @@
  ******************************************************************************/
 package com.blackrook.sync.pool;
 
+import java.util.IdentityHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.blackrook.commons.hash.HashMap;
 import com.blackrook.commons.linkedlist.Queue;
 import com.blackrook.commons.list.List;
+import com.blackrook.sync.RetryPolicy;
+import com.blackrook.sync.Task;
+import com.blackrook.sync.TaskListener;
 
 /**
  * A thread pool that expands in size to a certain limit, and shrinks 
  * back to the minimum when threads go unused.
  * <p>WorkPools are abstract, and require overriding of the {@link #createTaskFor(Object)}
  * which will create a runnable that gets dumped into the pool queue.
+ * <p>By default, all enqueued objects share a single queue (the default lane). Pools that
+ * are shared by several producers or tenants can add more lanes via {@link #addLane(String, int, int)}
+ * and override {@link #classify(Object)} to sort enqueued objects into them. Workers then pick 
+ * among the non-empty lanes using weighted deficit round-robin, so a single busy lane cannot starve 
+ * the others.
+ * <p>If the enqueued objects are {@link Task}s, tasks that are cancelled before they start
+ * are removed from their lane as soon as they are cancelled.
+ * <p>If a {@link RetryPolicy} is set, work that fails is put back in its lane after a backoff
+ * delay instead of being reported via {@link WorkPoolListener#workError(WorkPool, Object, Throwable)},
+ * until the policy gives up on it. Delayed retries wait on a timer thread, not on a worker.
  * @author Matthew Tropiano
  * @since 2.5.0
  */
@@ -26,6 +46,8 @@ public abstract class WorkPool<R extends Object>
 	public static final String DEFAULT_POOL_NAME = "WorkerPool";
 	/** Default timeout. */
 	public static final int DEFAULT_WORKER_TIMEOUT = 1000;
+	/** Default lane name. */
+	public static final String DEFAULT_LANE_NAME = "default";
 	
 	/** Mutex for changing the available count. */
 	private Integer AVAILABLE_MUTEX = Integer.valueOf(0);
@@ -33,8 +55,34 @@ public abstract class WorkPool<R extends Object>
 	/** Reference to itself for workers. */
 	private WorkPool<R> SELF = this;
 	
-	/** Central queue of jobs to perform. */
-	private Queue<R> queue;
+	/** Mutex for all lane queues. */
+	private Object QUEUE_MUTEX = new Object();
+	
+	/** The lane that gets all unclassified jobs. */
+	private WorkPoolLane<R> defaultLane;
+	/** List of lanes, in round-robin order. */
+	private List<WorkPoolLane<R>> laneList;
+	/** Map of lane name to lane. */
+	private HashMap<String, WorkPoolLane<R>> laneMap;
+	/** Current round-robin lane index. */
+	private int laneIndex;
+	/** Total amount of queued jobs across all lanes. */
+	private volatile int queuedCount;
+	/** Listener that removes cancelled tasks from the lanes. */
+	private TaskListener cancelledTaskRemover;
+
+	/** Mutex for retry state. */
+	private Object RETRY_MUTEX = new Object();
+	/** The retry policy. Can be null. */
+	private volatile RetryPolicy retryPolicy;
+	/** Attempts made for objects that have failed at least once. */
+	private IdentityHashMap<R, Integer> retryAttempts;
+	/** Timer for delayed retries, created on first use. */
+	private ScheduledExecutorService retryTimer;
+	/** Amount of objects waiting for a retry. */
+	private volatile int retryPendingCount;
+	/** Total amount of retries scheduled. */
+	private volatile long retryCount;
 	/** Hash of worker threads in the pool. */
 	private List<Worker> workers;
 	/** List of pool listeners. */
@@ -132,7 +180,24 @@ public abstract class WorkPool<R extends Object>
 	@SafeVarargs
 	public WorkPool(String poolName, String workerNamePrefix, int workerMin, int workerMax, int workerTimeout, boolean daemon, WorkPoolListener<R> ...poolListeners)
 	{
-		queue = new Queue<R>();
+		defaultLane = new WorkPoolLane<R>(DEFAULT_LANE_NAME, 1, WorkPoolLane.UNBOUNDED);
+		laneList = new List<WorkPoolLane<R>>(4);
+		laneList.add(defaultLane);
+		laneMap = new HashMap<String, WorkPoolLane<R>>(4);
+		laneMap.put(DEFAULT_LANE_NAME, defaultLane);
+		laneIndex = 0;
+		queuedCount = 0;
+		cancelledTaskRemover = new TaskListener()
+		{
+			@Override
+			@SuppressWarnings("unchecked")
+			public void taskFinished(Task task)
+			{
+				if (task.isCancelled())
+					remove((R)task);
+			}
+		};
+		
 		workers = new List<Worker>();
 		listeners = new Queue<WorkPoolListener<R>>();
 		
@@ -150,6 +215,12 @@ public abstract class WorkPool<R extends Object>
 		workerCreatedCount = 0;
 		workerAvailableCount = 0;
 		
+		retryPolicy = null;
+		retryAttempts = new IdentityHashMap<R, Integer>();
+		retryTimer = null;
+		retryPendingCount = 0;
+		retryCount = 0L;
+		
 		spawnNeeded();
 	}
 
@@ -218,6 +289,121 @@ public abstract class WorkPool<R extends Object>
 		return workerCreatedCount;
 	}
 
+	/**
+	 * Sets the policy for retrying failed work. 
+	 * Work is only reported as failed to listeners once this policy gives up on it.
+	 * @param retryPolicy the policy to use, or null for no retries.
+	 * @since 2.7.0
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy)
+	{
+		this.retryPolicy = retryPolicy;
+	}
+
+	/**
+	 * Gets the policy for retrying failed work, or null if failed work is not retried.
+	 * @since 2.7.0
+	 */
+	public RetryPolicy getRetryPolicy()
+	{
+		return retryPolicy;
+	}
+
+	/**
+	 * Returns the total amount of retries scheduled by this pool.
+	 * @since 2.7.0
+	 */
+	public long getRetryCount()
+	{
+		return retryCount;
+	}
+
+	/**
+	 * Returns the amount of failed objects currently waiting to be retried.
+	 * @since 2.7.0
+	 */
+	public int getRetryPendingCount()
+	{
+		return retryPendingCount;
+	}
+
+	/**
+	 * Schedules a failed object to be retried, if the retry policy allows it.
+	 * @return true if a retry was scheduled, false if the failure should be reported.
+	 */
+	private boolean scheduleRetry(final R dequeued, Throwable t)
+	{
+		RetryPolicy policy = retryPolicy;
+		if (policy == null)
+			return false;
+		
+		long delay;
+		synchronized (RETRY_MUTEX)
+		{
+			Integer prev = retryAttempts.get(dequeued);
+			int attempts = prev != null ? prev + 1 : 1;
+			if (!policy.shouldRetry(attempts, t))
+			{
+				retryAttempts.remove(dequeued);
+				return false;
+			}
+			retryAttempts.put(dequeued, attempts);
+			delay = policy.getDelay(attempts);
+			
+			if (retryTimer == null)
+				retryTimer = createRetryTimer();
+			retryPendingCount++;
+			retryCount++;
+		}
+		
+		retryTimer.schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				synchronized (RETRY_MUTEX) {retryPendingCount--;}
+				if (!offer(dequeued, true))
+				{
+					clearRetry(dequeued);
+					fireWorkError(SELF, dequeued, new IllegalStateException("Lane for retried work is full."));
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+		return true;
+	}
+	
+	/**
+	 * Forgets the retry attempts made for an object.
+	 */
+	private void clearRetry(R dequeued)
+	{
+		synchronized (RETRY_MUTEX)
+		{
+			if (!retryAttempts.isEmpty())
+				retryAttempts.remove(dequeued);
+		}
+	}
+	
+	/**
+	 * Creates the timer used for delayed retries.
+	 */
+	private ScheduledExecutorService createRetryTimer()
+	{
+		ScheduledThreadPoolExecutor out = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, name + "-Retry");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		out.setKeepAliveTime(Math.max(workerTimeout, 1), TimeUnit.MILLISECONDS);
+		out.allowCoreThreadTimeOut(true);
+		return out;
+	}
+	
 	/**
 	 * Spawns a new worker.
 	 */
@@ -255,22 +441,178 @@ public abstract class WorkPool<R extends Object>
 		while (getWorkerCount() < workerMin)
 			startWorker();
 		
-		if (getWorkerCount() < workerMax && !queue.isEmpty() && workerAvailableCount == 0)
+		if (getWorkerCount() < workerMax && queuedCount > 0 && workerAvailableCount == 0)
 			startWorker();
 	}
 	
+	/**
+	 * Adds a new lane to this pool.
+	 * Objects are sorted into lanes via {@link #classify(Object)}.
+	 * @param laneName the name of the lane.
+	 * @param weight the lane's weight, or how many objects are taken from this lane per round. Must be 1 or greater.
+	 * @param maxDepth the maximum amount of objects that can be queued in this lane, or {@link WorkPoolLane#UNBOUNDED}.
+	 * @return the new lane.
+	 * @throws IllegalArgumentException if a lane with this name already exists, or the weight or depth are invalid.
+	 * @since 2.7.0
+	 */
+	public WorkPoolLane<R> addLane(String laneName, int weight, int maxDepth)
+	{
+		synchronized (QUEUE_MUTEX)
+		{
+			if (laneMap.get(laneName) != null)
+				throw new IllegalArgumentException("Lane \"" + laneName + "\" already exists.");
+			WorkPoolLane<R> lane = new WorkPoolLane<R>(laneName, weight, maxDepth);
+			laneList.add(lane);
+			laneMap.put(laneName, lane);
+			return lane;
+		}
+	}
+
+	/**
+	 * Returns a lane in this pool by name, or null if no such lane.
+	 * @param laneName the name of the lane.
+	 * @since 2.7.0
+	 */
+	public WorkPoolLane<R> getLane(String laneName)
+	{
+		synchronized (QUEUE_MUTEX)
+		{
+			return laneMap.get(laneName);
+		}
+	}
+
+	/**
+	 * Returns the lane that receives objects that are not classified into another lane.
+	 * @since 2.7.0
+	 */
+	public WorkPoolLane<R> getDefaultLane()
+	{
+		return defaultLane;
+	}
+
+	/**
+	 * Returns the amount of lanes in this pool, including the default lane.
+	 * @since 2.7.0
+	 */
+	public int getLaneCount()
+	{
+		synchronized (QUEUE_MUTEX)
+		{
+			return laneList.size();
+		}
+	}
+
+	/**
+	 * Returns the total amount of objects waiting in all lanes.
+	 * @since 2.7.0
+	 */
+	public int getQueuedCount()
+	{
+		return queuedCount;
+	}
+
 	/**
 	 * Enqueues a task to assign to an available worker.
+	 * @throws IllegalStateException if the lane that the task was classified into is full.
+	 * @see #offer(Object)
 	 */
 	public void enqueue(R task)
 	{
-		synchronized (queue)
+		if (!offer(task))
+			throw new IllegalStateException("Lane for this task is full.");
+	}
+
+	/**
+	 * Enqueues a task to assign to an available worker, if its lane has room for it.
+	 * @param task the task to enqueue.
+	 * @return true if enqueued, false if the lane that the task was classified into is full.
+	 * @since 2.7.0
+	 */
+	public boolean offer(R task)
+	{
+		return offer(task, false);
+	}
+
+	/**
+	 * Enqueues a task, if its lane has room for it.
+	 */
+	private boolean offer(R task, boolean retry)
+	{
+		synchronized (QUEUE_MUTEX)
 		{
-			queue.add(task);
+			String laneName = classify(task);
+			WorkPoolLane<R> lane = laneName != null ? laneMap.get(laneName) : null;
+			if (lane == null)
+				lane = defaultLane;
+			
+			if (!lane.offer(task, retry))
+				return false;
+			queuedCount++;
 			fireWorkEnqueued(this, task);
 			spawnNeeded();
-			queue.notifyAll();
+			QUEUE_MUTEX.notifyAll();
+		}
+		if (task instanceof Task)
+			((Task)task).addListener(cancelledTaskRemover);
+		return true;
+	}
+
+	/**
+	 * Removes an object from this pool's lanes, if it has not been dequeued by a worker yet.
+	 * @param task the object to remove.
+	 * @return true if removed, false if it was not queued.
+	 * @since 2.7.0
+	 */
+	public boolean remove(R task)
+	{
+		synchronized (QUEUE_MUTEX)
+		{
+			for (int i = 0; i < laneList.size(); i++)
+			{
+				if (laneList.get(i).remove(task))
+				{
+					queuedCount--;
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the name of the lane that an object should be enqueued in.
+	 * By default, this returns null, which places everything in the default lane.
+	 * Names that do not match an added lane also go to the default lane.
+	 * <p>This is called while the pool's queues are locked, so it should be fast and not block.
+	 * @param object the object being enqueued.
+	 * @return the name of the lane to enqueue in, or null for the default lane.
+	 * @since 2.7.0
+	 */
+	protected String classify(R object)
+	{
+		return null;
+	}
+
+	/**
+	 * Removes the next object to work on from the lanes, via weighted deficit round-robin.
+	 * Each lane is granted its weight in credit when the round reaches it, and 
+	 * each dequeued object costs one credit. Empty lanes forfeit their credit.
+	 * Must be called while holding the queue mutex, and only if the queued count is greater than 0.
+	 */
+	private R dequeueNext()
+	{
+		WorkPoolLane<R> lane = laneList.get(laneIndex);
+		while (lane.isEmpty() || lane.deficit <= 0)
+		{
+			lane.deficit = 0;
+			laneIndex = (laneIndex + 1) % laneList.size();
+			lane = laneList.get(laneIndex);
+			if (!lane.isEmpty())
+				lane.deficit += lane.getWeight();
 		}
+		lane.deficit--;
+		queuedCount--;
+		return lane.poll();
 	}
 
 	/**
@@ -379,7 +721,7 @@ public abstract class WorkPool<R extends Object>
 
 		private boolean mortalityCheck()
 		{
-			return SELF.shutDown || (getWorkerCount() > workerMin && queue.isEmpty());
+			return SELF.shutDown || (getWorkerCount() > workerMin && queuedCount == 0);
 		}
 		
 		@Override
@@ -390,15 +732,15 @@ public abstract class WorkPool<R extends Object>
 				Runnable currentWork = null;
 				R dequeued = null;
 				
-				synchronized (queue)
+				synchronized (QUEUE_MUTEX)
 				{
-					while (queue.isEmpty() && !mortalityCheck())
+					while (queuedCount == 0 && !mortalityCheck())
 					{
-						try {queue.wait(workerTimeout);} catch (InterruptedException ex) { /* Do nothing.*/	} 
+						try {QUEUE_MUTEX.wait(workerTimeout);} catch (InterruptedException ex) { /* Do nothing.*/	} 
 					}
 					try {
-						if (!queue.isEmpty())
-							currentWork = createTaskFor(dequeued = queue.dequeue());
+						if (queuedCount > 0)
+							currentWork = createTaskFor(dequeued = dequeueNext());
 					} catch (Throwable t) {
 						fireWorkError(SELF, dequeued, t);
 					}
@@ -411,9 +753,12 @@ public abstract class WorkPool<R extends Object>
 					synchronized (AVAILABLE_MUTEX) {workerAvailableCount--;}
 					fireWorkStarted(SELF, dequeued);
 					currentWork.run();
-					synchronized (AVAILABLE_MUTEX) {workerAvailableCount++;}
+					clearRetry(dequeued);
 				} catch (Throwable t) {
-					fireWorkError(SELF, dequeued, t);
+					if (!scheduleRetry(dequeued, t))
+						fireWorkError(SELF, dequeued, t);
+				} finally {
+					synchronized (AVAILABLE_MUTEX) {workerAvailableCount++;}
 				}
 
 				fireWorkFinished(SELF, dequeued);
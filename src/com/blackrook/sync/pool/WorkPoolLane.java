@@ -0,0 +1,207 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Black Rook Software
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+ ******************************************************************************/
+package com.blackrook.sync.pool;
+
+import com.blackrook.commons.linkedlist.Queue;
+
+/**
+ * A single lane of work in a {@link WorkPool}.
+ * <p>
+ * Each lane has its own queue, depth limit, and weight. Workers pick among non-empty
+ * lanes using weighted deficit round-robin, so a lane with a weight of 3 is served
+ * three items for every one item served from a lane with a weight of 1,
+ * regardless of how deep either queue is.
+ * <p>
+ * Lanes are created via {@link WorkPool#addLane(String, int, int)}, and all of their
+ * queue operations are guarded by the owning pool. The statistics getters may be
+ * called from any thread.
+ * @param <R> the type of object enqueued in the owning pool.
+ * @author Matthew Tropiano
+ * @since 2.7.0
+ */
+public final class WorkPoolLane<R extends Object>
+{
+	/** Value for an unbounded lane depth. */
+	public static final int UNBOUNDED = -1;
+
+	/** The name of this lane. */
+	private String name;
+	/** The weight of this lane (items served per round). */
+	private int weight;
+	/** Maximum amount of queued items. */
+	private int maxDepth;
+
+	/** The lane queue. */
+	Queue<R> queue;
+	/** Current deficit counter. */
+	int deficit;
+
+	/** Current queue depth. */
+	private volatile int depth;
+	/** Total amount of items accepted. */
+	private volatile long enqueuedCount;
+	/** Total amount of items handed to workers. */
+	private volatile long dequeuedCount;
+	/** Total amount of items rejected due to a full lane. */
+	private volatile long rejectedCount;
+	/** Total amount of failed items put back in this lane for a retry. */
+	private volatile long retriedCount;
+
+	/**
+	 * Creates a new lane.
+	 * @param name the lane name.
+	 * @param weight the lane weight. Must be 1 or greater.
+	 * @param maxDepth the maximum depth of this lane, or {@link #UNBOUNDED} for no limit.
+	 * @throws IllegalArgumentException if weight is less than 1, or maxDepth is 0 or less and not {@link #UNBOUNDED}.
+	 */
+	WorkPoolLane(String name, int weight, int maxDepth)
+	{
+		if (weight < 1)
+			throw new IllegalArgumentException("Lane weight must be 1 or greater.");
+		if (maxDepth != UNBOUNDED && maxDepth < 1)
+			throw new IllegalArgumentException("Lane depth must be 1 or greater, or UNBOUNDED.");
+
+		this.name = name;
+		this.weight = weight;
+		this.maxDepth = maxDepth;
+		this.queue = new Queue<R>();
+		this.deficit = 0;
+		this.depth = 0;
+		this.enqueuedCount = 0L;
+		this.dequeuedCount = 0L;
+		this.rejectedCount = 0L;
+		this.retriedCount = 0L;
+	}
+
+	/**
+	 * Attempts to add an object to this lane.
+	 * Must be called while holding the pool's queue lock.
+	 * @param retry if true, the object is being retried.
+	 * @return true if added, false if the lane is full.
+	 */
+	boolean offer(R object, boolean retry)
+	{
+		if (maxDepth != UNBOUNDED && depth >= maxDepth)
+		{
+			rejectedCount++;
+			return false;
+		}
+		queue.enqueue(object);
+		depth++;
+		if (retry)
+			retriedCount++;
+		else
+			enqueuedCount++;
+		return true;
+	}
+
+	/**
+	 * Removes the next object from this lane.
+	 * Must be called while holding the pool's queue lock.
+	 */
+	R poll()
+	{
+		R out = queue.dequeue();
+		depth--;
+		dequeuedCount++;
+		return out;
+	}
+
+	/**
+	 * Removes a specific object from this lane, if it is queued.
+	 * Must be called while holding the pool's queue lock.
+	 * @return true if removed, false if not.
+	 */
+	boolean remove(R object)
+	{
+		if (!queue.remove(object))
+			return false;
+		depth--;
+		return true;
+	}
+
+	/**
+	 * Returns the name of this lane.
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * Returns the weight of this lane.
+	 */
+	public int getWeight()
+	{
+		return weight;
+	}
+
+	/**
+	 * Returns the maximum depth of this lane, or {@link #UNBOUNDED}.
+	 */
+	public int getMaxDepth()
+	{
+		return maxDepth;
+	}
+
+	/**
+	 * Returns the amount of items currently queued in this lane.
+	 */
+	public int getDepth()
+	{
+		return depth;
+	}
+
+	/**
+	 * Returns the total amount of items accepted into this lane.
+	 */
+	public long getEnqueuedCount()
+	{
+		return enqueuedCount;
+	}
+
+	/**
+	 * Returns the total amount of items taken from this lane by workers.
+	 */
+	public long getDequeuedCount()
+	{
+		return dequeuedCount;
+	}
+
+	/**
+	 * Returns the total amount of items rejected because this lane was full.
+	 */
+	public long getRejectedCount()
+	{
+		return rejectedCount;
+	}
+
+	/**
+	 * Returns the total amount of failed items put back in this lane for a retry.
+	 * @see WorkPool#setRetryPolicy(com.blackrook.sync.RetryPolicy)
+	 */
+	public long getRetriedCount()
+	{
+		return retriedCount;
+	}
+
+	/**
+	 * Returns true if this lane has no queued items.
+	 */
+	public boolean isEmpty()
+	{
+		return depth == 0;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "WorkPoolLane [" + name + "] weight: " + weight + " depth: " + depth + (maxDepth != UNBOUNDED ? "/" + maxDepth : "");
+	}
+
+}